@@ -1,64 +1,150 @@
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.locks.*;
+import java.util.function.Supplier;
+
+public class AddressConfigTable implements ConfigTable {
+    private static final int LOCK_STRIPES = 1 << 10;
 
-public class AddressConfigTable {
     private final ReadWriteLock[] locks;
-    private final AddressConfig[] configs;
+    // null for an address that has not received a config yet, which allows everything
+    private final IntervalIndex[] indexes;
+    private final PersonaNonGrataSet personaNonGrata;
+    private final Supplier<IntervalIndex> indexFactory;
+    // null unless the table was built with a flow cache
+    private final FlowCache flowCache;
+    // bumped by every insert to an address, tags the flow cache entries
+    private final AtomicIntegerArray versions;
+
     public AddressConfigTable(int logSize) {
-        // it is initialized to the max size. no need to resize
-        configs = new AddressConfig[1 << logSize];
-        locks = new ReentrantReadWriteLock[1 << logSize];
-        for (int i = 0; i < configs.length; i++) {
-            configs[i] = new AddressConfig();
-        }
+        this(logSize, IntervalTree::new);
+    }
 
+    public AddressConfigTable(int logSize, Supplier<IntervalIndex> indexFactory) {
+        this(logSize, indexFactory, 0);
+    }
+
+    /**
+     * @param flowCacheLogSize
+     *          log2 of the number of cached (source, destination) verdicts, 0 for no cache
+     */
+    public AddressConfigTable(int logSize, Supplier<IntervalIndex> indexFactory, int flowCacheLogSize) {
+        // it is initialized to the max size. no need to resize.
+        // interval state is only allocated once an address receives a config
+        this.indexFactory = indexFactory;
+        indexes = new IntervalIndex[1 << logSize];
+        personaNonGrata = new PersonaNonGrataSet(logSize);
+        locks = new ReentrantReadWriteLock[Math.min(indexes.length, LOCK_STRIPES)];
         for (int i = 0; i < locks.length; i++) {
             locks[i] = new ReentrantReadWriteLock();
         }
+        flowCache = flowCacheLogSize > 0 ? new FlowCache(flowCacheLogSize) : null;
+        versions = flowCacheLogSize > 0 ? new AtomicIntegerArray(1 << logSize) : null;
     }
 
     public boolean isPacketAllowed(int source, int destination) {
-        // first check personaNonGrata of source
-        int sourceLockIndex = source % locks.length;
-        locks[sourceLockIndex].readLock().lock();
-        if (configs[source].isPersonaNonGrata()) {
-            locks[sourceLockIndex].readLock().unlock();
+        if (flowCache == null) {
+            return lookup(source, destination);
+        }
+        // read the versions before the lookup, so a concurrent insert can only
+        // leave behind an entry that is already stale
+        long key = FlowCache.key(source, destination);
+        long tag = FlowCache.tag(versions.get(source), versions.get(destination));
+        int cached = flowCache.get(key, tag);
+        if (cached != FlowCache.MISS) {
+            return cached == FlowCache.ALLOWED;
+        }
+        boolean result = lookup(source, destination);
+        flowCache.put(key, tag, result);
+        return result;
+    }
+
+    private boolean lookup(int source, int destination) {
+        // first check personaNonGrata of source, no lock needed
+        if (personaNonGrata.contains(source)) {
             return false;
         }
 
         // then check if source is in the destination interval tree
-        int destinationLockIndex = destination % locks.length;
+        int destinationLockIndex = lockIndex(destination);
         locks[destinationLockIndex].readLock().lock();
-        boolean result = configs[destination].root.isAddressAllowed(source);
-
-        //release locks
-        locks[sourceLockIndex].readLock().unlock();
+        IntervalIndex index = indexes[destination];
+        boolean result = index == null || index.isAddressAllowed(source);
         locks[destinationLockIndex].readLock().unlock();
         return result;
     }
 
     public void insert(int address, int start, int end, boolean addressAllowed, boolean personaNonGrata) {
-        int lockIndex = address % locks.length;
+        int lockIndex = lockIndex(address);
 //        System.out.println("inserting " + address + " " +  start + " " + end + " " + addressAllowed);
         locks[lockIndex].writeLock().lock();
+        IntervalIndex root = indexes[address];
+        if (root == null) {
+            root = indexFactory.get();
+            indexes[address] = root;
+        }
         // it is [start, end) therefore we do end-1
-        configs[address].root.insert(start, end - 1, addressAllowed);
-        configs[address].setPersonaNonGrata(personaNonGrata);
+        root.insert(start, end - 1, addressAllowed);
+        this.personaNonGrata.set(address, personaNonGrata);
+        if (versions != null) {
+            // published after the change, so a reader seeing the new version sees the change
+            versions.set(address, versions.get(address) + 1);
+        }
         locks[lockIndex].writeLock().unlock();
     }
 
-    private class AddressConfig {
-        private volatile boolean personaNonGrata = false;
-        private final IntervalTree root;
-        private AddressConfig() {
-            root = new IntervalTree();
-        }
+    public void bulkLoad(Config[] configs) {
+        ConfigBulkLoad batch = new ConfigBulkLoad(configs, indexes.length);
+        batch.forEachAddress((address, from, to) -> {
+            int lockIndex = lockIndex(address);
+            locks[lockIndex].writeLock().lock();
+            IntervalIndex root = indexes[address];
+            if (root == null) {
+                root = indexFactory.get();
+                indexes[address] = root;
+            }
+            root.insertAll(batch, from, to);
+            this.personaNonGrata.set(address, batch.personaNonGrata(to - 1));
+            if (versions != null) {
+                versions.set(address, versions.get(address) + 1);
+            }
+            locks[lockIndex].writeLock().unlock();
+        });
+    }
 
-        private boolean isPersonaNonGrata() {
-            return personaNonGrata;
-        }
+    public int logSize() {
+        return Integer.numberOfTrailingZeros(indexes.length);
+    }
+
+    public boolean isPersonaNonGrata(int address) {
+        return personaNonGrata.contains(address);
+    }
+
+    public long[] segments(int address) {
+        int lockIndex = lockIndex(address);
+        locks[lockIndex].readLock().lock();
+        IntervalIndex index = indexes[address];
+        long[] result = index == null ? SegmentMap.EMPTY : index.segments();
+        locks[lockIndex].readLock().unlock();
+        return result;
+    }
 
-        private void setPersonaNonGrata(boolean png) {
-            personaNonGrata = png;
+    public void restore(int address, long[] segments, boolean personaNonGrata) {
+        IntervalIndex root = null;
+        if (segments.length > 0) {
+            root = indexFactory.get();
+            root.load(segments);
+        }
+        int lockIndex = lockIndex(address);
+        locks[lockIndex].writeLock().lock();
+        indexes[address] = root;
+        this.personaNonGrata.set(address, personaNonGrata);
+        if (versions != null) {
+            versions.set(address, versions.get(address) + 1);
         }
+        locks[lockIndex].writeLock().unlock();
+    }
+
+    private int lockIndex(int address) {
+        return address % locks.length;
     }
 }
@@ -0,0 +1,15 @@
+import java.lang.management.ManagementFactory;
+
+/**
+ * Heap bytes allocated by the calling thread, as reported by HotSpot's
+ * com.sun.management.ThreadMXBean. Used to check that the packet path is
+ * garbage-free in steady state.
+ */
+class AllocationCounter {
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    static long currentThreadAllocatedBytes() {
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
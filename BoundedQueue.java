@@ -0,0 +1,35 @@
+/**
+ * Fixed-capacity queue between a Dispatcher and its PacketWorkers. Full and
+ * empty are reported through return values, never exceptions.
+ */
+interface BoundedQueue<T> {
+    /**
+     * @return
+     *          false if the queue is full
+     */
+    boolean offer(T x);
+
+    /**
+     * Enqueues as many of src[offset, offset + count) as fit.
+     * @return
+     *          the number of elements enqueued
+     */
+    int offerBatch(T[] src, int offset, int count);
+
+    /**
+     * @return
+     *          the oldest element, or null if the queue is empty
+     */
+    T poll();
+
+    /**
+     * Dequeues up to max elements into dst.
+     * @return
+     *          the number of elements dequeued
+     */
+    int drainTo(T[] dst, int max);
+
+    boolean isFull();
+
+    boolean isEmpty();
+}
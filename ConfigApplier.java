@@ -0,0 +1,61 @@
+/**
+ * Dedicated thread applying config packets from the high-priority config
+ * lanes, so rule changes never wait behind fingerprint work in the data
+ * queues. Every lane has a single Dispatcher producing into it, and this is
+ * the only thread writing the table, so a single-writer table works.
+ *
+ * Records, for every config, the time from dispatch (Packet.dispatchedAt)
+ * until insert returned and the rule is visible to workers.
+ */
+class ConfigApplier implements Runnable {
+    private static final int BATCH_SIZE = 16;
+
+    private final PaddedPrimitiveNonVolatile<Boolean> done;
+    private final BoundedQueue<Packet>[] lanes;
+    private final ConfigTable table;
+    // how the applier waits on empty lanes
+    private final WaitStrategy wait;
+    // how each lane's Dispatcher waits on a full lane
+    private final WaitStrategy[] dispatcherWaits;
+    private final Packet[] batch = new Packet[BATCH_SIZE];
+    final LatencyHistogram configToVisible = new LatencyHistogram();
+
+    public ConfigApplier(PaddedPrimitiveNonVolatile<Boolean> done, BoundedQueue<Packet>[] lanes,
+                         ConfigTable table, WaitStrategy wait, WaitStrategy[] dispatcherWaits) {
+        this.done = done;
+        this.lanes = lanes;
+        this.table = table;
+        this.wait = wait;
+        this.dispatcherWaits = dispatcherWaits;
+    }
+
+    public void run() {
+        int idle = 0;
+        while (!done.value || !allEmpty()) {
+            int applied = 0;
+            for (int lane = 0; lane < lanes.length; lane++) {
+                int count = lanes[lane].drainTo(batch, BATCH_SIZE);
+                if (count == 0) {
+                    continue;
+                }
+                dispatcherWaits[lane].wake();
+                for (int i = 0; i < count; i++) {
+                    table.insert(batch[i].config);
+                    configToVisible.record(System.nanoTime() - batch[i].dispatchedAt);
+                    batch[i] = null;
+                }
+                applied += count;
+            }
+            idle = applied == 0 ? wait.idle(idle) : 0;
+        }
+    }
+
+    private boolean allEmpty() {
+        for (BoundedQueue<Packet> lane : lanes) {
+            if (!lane.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
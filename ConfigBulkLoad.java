@@ -0,0 +1,106 @@
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A batch of configs grouped by address, in batch order within each address,
+ * so that every address's state can be built in one go, and different
+ * addresses in parallel on the common fork-join pool.
+ *
+ * The fields of the configs are copied into flat arrays in grouped order:
+ * reading the Config objects themselves address by address would miss the
+ * cache on nearly every one.
+ */
+class ConfigBulkLoad {
+    // split address ranges until they hold about this many configs
+    private static final int CONFIGS_PER_TASK = 1 << 12;
+
+    interface AddressLoader {
+        /**
+         * Applies configs from up to to, all for address, oldest first.
+         */
+        void load(int address, int from, int to);
+    }
+
+    // address a owns configs [offsets[a], offsets[a + 1])
+    private final int[] offsets;
+    private final int[] begins;
+    private final int[] ends;
+    private final boolean[] accepting;
+    private final boolean[] personaNonGrata;
+
+    ConfigBulkLoad(Config[] configs, int numAddresses) {
+        // a stable counting sort keeps the batch order within an address
+        offsets = new int[numAddresses + 1];
+        for (Config config : configs) {
+            offsets[config.address + 1]++;
+        }
+        for (int a = 0; a < numAddresses; a++) {
+            offsets[a + 1] += offsets[a];
+        }
+        int[] next = Arrays.copyOf(offsets, numAddresses);
+        begins = new int[configs.length];
+        ends = new int[configs.length];
+        accepting = new boolean[configs.length];
+        personaNonGrata = new boolean[configs.length];
+        for (Config config : configs) {
+            int k = next[config.address]++;
+            begins[k] = config.addressBegin;
+            ends[k] = config.addressEnd;
+            accepting[k] = config.acceptingRange;
+            personaNonGrata[k] = config.personaNonGrata;
+        }
+    }
+
+    // addressBegin of config k in grouped order
+    int begin(int k) {
+        return begins[k];
+    }
+
+    // addressEnd, exclusive
+    int end(int k) {
+        return ends[k];
+    }
+
+    boolean accepting(int k) {
+        return accepting[k];
+    }
+
+    boolean personaNonGrata(int k) {
+        return personaNonGrata[k];
+    }
+
+    /**
+     * Calls loader once for every address with configs in the batch, in
+     * parallel, and returns once all of them did.
+     */
+    void forEachAddress(AddressLoader loader) {
+        ForkJoinPool.commonPool().invoke(new LoadTask(loader, 0, offsets.length - 1));
+    }
+
+    private class LoadTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final AddressLoader loader;
+        private final int low;
+        private final int high;
+
+        LoadTask(AddressLoader loader, int low, int high) {
+            this.loader = loader;
+            this.low = low;
+            this.high = high;
+        }
+
+        protected void compute() {
+            if (high - low > 1 && offsets[high] - offsets[low] > CONFIGS_PER_TASK) {
+                int mid = (low + high) >>> 1;
+                invokeAll(new LoadTask(loader, low, mid), new LoadTask(loader, mid, high));
+                return;
+            }
+            for (int a = low; a < high; a++) {
+                if (offsets[a] < offsets[a + 1]) {
+                    loader.load(a, offsets[a], offsets[a + 1]);
+                }
+            }
+        }
+    }
+}
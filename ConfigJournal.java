@@ -0,0 +1,316 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Append-only write-ahead journal of applied configs, one fixed-width record
+ * each, numbered by sequence from the first record of the file.
+ *
+ * Callers only copy their record into an in-memory buffer. A background
+ * writer swaps that buffer with a second one and writes everything appended
+ * since its last swap with one write, so concurrent appends share a write
+ * (group commit), and it forces the file to disk every fsyncIntervalMillis
+ * at most. A crash loses at most the records of that interval; sync() waits
+ * for everything appended so far. Callers only block when appends outrun
+ * the disk by a whole buffer.
+ *
+ * Layout, little-endian: a header of magic, version (ints) and the sequence
+ * of the first record (long), then records of address, addressBegin,
+ * addressEnd and flags (ints). The flags carry a mark, so a record torn by
+ * a crash ends the journal instead of being replayed.
+ */
+class ConfigJournal implements AutoCloseable {
+    static final int RECORD_BYTES = 16;
+    private static final int HEADER_BYTES = 16;
+    private static final int MAGIC = 0x46574a4c;
+    private static final int VERSION = 1;
+    private static final int MARK = 0x4a430000;
+    private static final int MARK_MASK = 0xFFFF0000;
+    private static final int PERSONA_NON_GRATA = 1;
+    private static final int ACCEPTING = 2;
+    // records per buffer half
+    private static final int BUFFER_RECORDS = 1 << 14;
+    // replay reads in chunks this large and applies configs in bulk batches this large
+    private static final int REPLAY_READ_BYTES = 1 << 22;
+    private static final int REPLAY_BATCH = 1 << 20;
+
+    private final FileChannel channel;
+    private final long fsyncIntervalNanos;
+    private final Thread writer;
+
+    // guarded by this
+    private ByteBuffer filling = newBuffer();
+    private long appended;
+    private boolean syncRequested = false;
+    private boolean closed = false;
+    private IOException failure = null;
+
+    // owned by the writer
+    private ByteBuffer draining = newBuffer();
+    // records up to these sequences are written, and forced to disk
+    private volatile long written;
+    private volatile long durable;
+
+    /**
+     * Opens file for appending, creating it if needed. A torn record at the
+     * end of an existing journal is cut off.
+     */
+    ConfigJournal(Path file, long fsyncIntervalMillis) throws IOException {
+        this.fsyncIntervalNanos = fsyncIntervalMillis * 1000000;
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (channel.size() == 0) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putLong(0).flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            appended = 0;
+        } else {
+            long first = readHeader(channel, file);
+            appended = first + countRecords(channel);
+            channel.truncate(HEADER_BYTES + (appended - first) * RECORD_BYTES);
+        }
+        channel.position(channel.size());
+        written = appended;
+        durable = appended;
+        writer = new Thread(this::writeLoop, "config-journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Appends one config. Returns without waiting for the disk.
+     * @return
+     *          the sequence of the record
+     */
+    long append(int address, int start, int end, boolean addressAllowed, boolean personaNonGrata) {
+        boolean interrupted = false;
+        try {
+            synchronized (this) {
+                // the writer is a whole buffer behind, wait for it to swap
+                while (!filling.hasRemaining() && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                checkOpen();
+                boolean wasEmpty = filling.position() == 0;
+                filling.putInt(address).putInt(start).putInt(end)
+                        .putInt(MARK | (personaNonGrata ? PERSONA_NON_GRATA : 0) | (addressAllowed ? ACCEPTING : 0));
+                if (wasEmpty) {
+                    notifyAll();
+                }
+                return appended++;
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * The sequence the next record will get, ie. the number of records in
+     * the journal counting from sequence 0.
+     */
+    synchronized long appended() {
+        return appended;
+    }
+
+    /**
+     * Waits until every record appended before the call is on disk.
+     */
+    synchronized void sync() throws IOException, InterruptedException {
+        long target = appended;
+        while (durable < target) {
+            checkFailure();
+            syncRequested = true;
+            notifyAll();
+            wait();
+        }
+    }
+
+    /**
+     * Writes and forces everything appended, then stops the writer.
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        synchronized (this) {
+            checkFailure();
+        }
+    }
+
+    private void writeLoop() {
+        long lastSync = System.nanoTime();
+        try {
+            while (true) {
+                long target;
+                boolean force;
+                synchronized (this) {
+                    while (true) {
+                        boolean syncDue = written > durable
+                                && (syncRequested || System.nanoTime() - lastSync >= fsyncIntervalNanos);
+                        if (filling.position() > 0 || syncDue || closed) {
+                            break;
+                        }
+                        if (written > durable) {
+                            long waitNanos = fsyncIntervalNanos - (System.nanoTime() - lastSync);
+                            wait(Math.max(1, waitNanos / 1000000));
+                        } else {
+                            wait();
+                        }
+                    }
+                    if (closed && filling.position() == 0 && written == durable) {
+                        return;
+                    }
+                    ByteBuffer swap = filling;
+                    filling = draining;
+                    draining = swap;
+                    target = appended;
+                    force = closed || syncRequested || System.nanoTime() - lastSync >= fsyncIntervalNanos;
+                    syncRequested = false;
+                    // producers blocked on a full buffer can go on
+                    notifyAll();
+                }
+                draining.flip();
+                while (draining.hasRemaining()) {
+                    channel.write(draining);
+                }
+                draining.clear();
+                written = target;
+                if (force) {
+                    channel.force(false);
+                    lastSync = System.nanoTime();
+                    durable = target;
+                    synchronized (this) {
+                        notifyAll();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                failure = e;
+                closed = true;
+                notifyAll();
+            }
+        } catch (InterruptedException e) {
+            synchronized (this) {
+                failure = new IOException("journal writer interrupted", e);
+                closed = true;
+                notifyAll();
+            }
+        }
+    }
+
+    // guarded by this
+    private void checkOpen() {
+        if (failure != null) {
+            throw new UncheckedIOException(failure);
+        }
+        if (closed) {
+            throw new IllegalStateException("journal closed");
+        }
+    }
+
+    // guarded by this
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Applies the records of file from sequence fromSequence on to table, in
+     * order, reading the file in large sequential chunks and loading the
+     * configs in bulk. Stops at the first torn record.
+     * @return
+     *          the sequence after the last record, where a snapshot of table could resume
+     */
+    static long replay(Path file, long fromSequence, ConfigTable table) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long sequence = readHeader(channel, file);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(REPLAY_READ_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            Config[] batch = new Config[REPLAY_BATCH];
+            int size = 0;
+            channel.position(HEADER_BYTES);
+            replay:
+            while (channel.read(buffer) >= 0 || buffer.position() > 0) {
+                buffer.flip();
+                if (buffer.remaining() < RECORD_BYTES) {
+                    break;
+                }
+                while (buffer.remaining() >= RECORD_BYTES) {
+                    int address = buffer.getInt();
+                    int begin = buffer.getInt();
+                    int end = buffer.getInt();
+                    int flags = buffer.getInt();
+                    if ((flags & MARK_MASK) != MARK) {
+                        break replay;
+                    }
+                    if (sequence++ < fromSequence) {
+                        continue;
+                    }
+                    batch[size++] = new Config(address, (flags & PERSONA_NON_GRATA) != 0,
+                            (flags & ACCEPTING) != 0, begin, end);
+                    if (size == batch.length) {
+                        table.bulkLoad(batch);
+                        size = 0;
+                    }
+                }
+                buffer.compact();
+            }
+            if (size > 0) {
+                table.bulkLoad(Arrays.copyOf(batch, size));
+            }
+            return sequence;
+        }
+    }
+
+    private static long readHeader(FileChannel channel, Path file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                break;
+            }
+        }
+        if (header.hasRemaining() || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+            throw new IOException("not a config journal: " + file);
+        }
+        return header.getLong(8);
+    }
+
+    // whole, marked records after the header
+    private static long countRecords(FileChannel channel) throws IOException {
+        long records = (channel.size() - HEADER_BYTES) / RECORD_BYTES;
+        ByteBuffer flags = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        while (records > 0) {
+            flags.clear();
+            channel.read(flags, HEADER_BYTES + records * RECORD_BYTES - 4);
+            if (!flags.hasRemaining() && (flags.getInt(0) & MARK_MASK) == MARK) {
+                break;
+            }
+            records--;
+        }
+        return records;
+    }
+
+    private static ByteBuffer newBuffer() {
+        return ByteBuffer.allocateDirect(BUFFER_RECORDS * RECORD_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
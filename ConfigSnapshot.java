@@ -0,0 +1,194 @@
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Memory-mapped binary snapshot of a ConfigTable: the persona-non-grata
+ * bitset and the effective verdicts of every address, as SegmentMap
+ * segments. Restoring allocates one array per configured address and none
+ * per range, so a cold start costs little more than the page faults, and
+ * lookups can also be served straight from the mapping.
+ *
+ * A snapshot can be taken while traffic runs. The segments of an address
+ * are copied consistently, but its persona-non-grata flag is read
+ * separately, and different addresses at different moments, so it is only
+ * exact once the journal records from journalSequence on are replayed over
+ * it: painting a suffix of an address's configs again ends in the same
+ * state, and the last config replayed sets the flag.
+ *
+ * Layout, little-endian:
+ *   header    magic, version, logSize, 0 as ints, journalSequence, segment count as longs
+ *   bitset    one bit per address, rounded up to longs
+ *   offsets   address a owns segments [offsets[a], offsets[a + 1]), 2^logSize + 1 ints, padded to 8 bytes
+ *   segments  packed longs, see SegmentMap
+ */
+class ConfigSnapshot {
+    private static final int MAGIC = 0x46575343;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+
+    private final int logSize;
+    private final long journalSequence;
+    private final LongBuffer personaNonGrata;
+    private final IntBuffer offsets;
+    private final LongBuffer segments;
+
+    private ConfigSnapshot(MappedByteBuffer buffer, Path file) throws IOException {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("not a config snapshot: " + file);
+        }
+        logSize = buffer.getInt(8);
+        journalSequence = buffer.getLong(16);
+        long segmentCount = buffer.getLong(24);
+        if (logSize < 0 || logSize > 30 || size(logSize, segmentCount) != buffer.capacity()) {
+            throw new IOException("truncated config snapshot: " + file);
+        }
+        int bitsetBytes = bitsetWords(logSize) * 8;
+        int offsetsBytes = offsetsBytes(logSize);
+        personaNonGrata = buffer.slice(HEADER_BYTES, bitsetBytes).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+        offsets = buffer.slice(HEADER_BYTES + bitsetBytes, offsetsBytes).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        int segmentsStart = HEADER_BYTES + bitsetBytes + offsetsBytes;
+        segments = buffer.slice(segmentsStart, buffer.capacity() - segmentsStart)
+                .order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+    }
+
+    /**
+     * Writes a snapshot of table to file, replacing it atomically.
+     * @param journalSequence
+     *          the number of journal records applied to table before this call
+     */
+    static void write(ConfigTable table, long journalSequence, Path file) throws IOException {
+        int logSize = table.logSize();
+        int numAddresses = 1 << logSize;
+        long[][] perAddress = new long[numAddresses][];
+        long[] bitset = new long[bitsetWords(logSize)];
+        long segmentCount = 0;
+        for (int a = 0; a < numAddresses; a++) {
+            perAddress[a] = table.segments(a);
+            segmentCount += perAddress[a].length;
+            if (table.isPersonaNonGrata(a)) {
+                bitset[a >>> 6] |= 1L << a;
+            }
+        }
+        long size = size(logSize, segmentCount);
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("config snapshot too large to map: " + size + " bytes");
+        }
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(logSize).putInt(0);
+            buffer.putLong(journalSequence).putLong(segmentCount);
+            for (long word : bitset) {
+                buffer.putLong(word);
+            }
+            int offset = 0;
+            for (int a = 0; a < numAddresses; a++) {
+                buffer.putInt(offset);
+                offset += perAddress[a].length;
+            }
+            buffer.putInt(offset);
+            buffer.position(buffer.position() + offsetsBytes(logSize) - 4 * (numAddresses + 1));
+            for (long[] addressSegments : perAddress) {
+                for (long segment : addressSegments) {
+                    buffer.putLong(segment);
+                }
+            }
+            buffer.force();
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Maps file read-only. The mapping stays valid after the channel closes.
+     */
+    static ConfigSnapshot open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new ConfigSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), file);
+        }
+    }
+
+    int logSize() {
+        return logSize;
+    }
+
+    long journalSequence() {
+        return journalSequence;
+    }
+
+    boolean isPersonaNonGrata(int address) {
+        return (personaNonGrata.get(address >>> 6) & (1L << address)) != 0;
+    }
+
+    /**
+     * A copy of the segments of address, SegmentMap.EMPTY if it has none.
+     */
+    long[] segments(int address) {
+        int from = offsets.get(address);
+        int count = offsets.get(address + 1) - from;
+        if (count == 0) {
+            return SegmentMap.EMPTY;
+        }
+        long[] result = new long[count];
+        segments.get(from, result);
+        return result;
+    }
+
+    /**
+     * Same verdict as the snapshotted table, read from the mapping without allocating.
+     */
+    boolean isPacketAllowed(int source, int destination) {
+        if (isPersonaNonGrata(source)) {
+            return false;
+        }
+        // the last segment starting at or before source decides
+        long key = ((long) source + 1) << 1;
+        int low = offsets.get(destination);
+        int high = offsets.get(destination + 1);
+        int first = low;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (segments.get(mid) < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low == first || (segments.get(low - 1) & 1) != 0;
+    }
+
+    /**
+     * Replaces the state of every address of table by the snapshot's.
+     */
+    void restoreInto(ConfigTable table) {
+        if (table.logSize() != logSize) {
+            throw new IllegalArgumentException("snapshot of 2^" + logSize + " addresses, table of 2^" + table.logSize());
+        }
+        for (int a = 0; a < 1 << logSize; a++) {
+            table.restore(a, segments(a), isPersonaNonGrata(a));
+        }
+    }
+
+    private static int bitsetWords(int logSize) {
+        return ((1 << logSize) + 63) >>> 6;
+    }
+
+    private static int offsetsBytes(int logSize) {
+        return (4 * ((1 << logSize) + 1) + 7) & ~7;
+    }
+
+    private static long size(int logSize, long segmentCount) {
+        return HEADER_BYTES + 8L * bitsetWords(logSize) + offsetsBytes(logSize) + 8 * segmentCount;
+    }
+}
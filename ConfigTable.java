@@ -0,0 +1,46 @@
+/**
+ * Firewall state consulted by the PacketWorkers: persona-non-grata sources
+ * and, per destination, which source ranges it accepts.
+ */
+public interface ConfigTable {
+    boolean isPacketAllowed(int source, int destination);
+
+    /**
+     * Applies a config packet: [start, end) of address becomes accepting or
+     * rejecting, and address's persona-non-grata flag is overwritten.
+     */
+    void insert(int address, int start, int end, boolean addressAllowed, boolean personaNonGrata);
+
+    /**
+     * Applies config. Only an ExpiringConfigTable honors its ttlMillis, every
+     * other table keeps the config forever.
+     */
+    default void insert(Config config) {
+        insert(config.address, config.addressBegin, config.addressEnd, config.acceptingRange,
+                config.personaNonGrata);
+    }
+
+    /**
+     * Same result as inserting configs one by one in array order, but every
+     * address is built once from all of its configs, and different addresses
+     * in parallel.
+     */
+    void bulkLoad(Config[] configs);
+
+    // the table holds 2^logSize addresses
+    int logSize();
+
+    boolean isPersonaNonGrata(int address);
+
+    /**
+     * The verdicts for sources sent to address, in SegmentMap's packed
+     * format. Consistent for this one address even while inserts run.
+     */
+    long[] segments(int address);
+
+    /**
+     * Replaces all state of address by segments, as returned by segments(),
+     * and its persona-non-grata flag. The table may keep segments.
+     */
+    void restore(int address, long[] segments, boolean personaNonGrata);
+}
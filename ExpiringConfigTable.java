@@ -0,0 +1,301 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ConfigTable whose configs may carry a time-to-live. Once it passes, the
+ * range reverts to whatever the other configs of its address say, as if the
+ * expired config had never been inserted.
+ *
+ * An address keeps a log of its active configs from its first config with a
+ * TTL on: the segments of everything before it as a base, then every later
+ * config in insert order. A TimingWheel calls back when a config is due; the
+ * log then drops it, repaints its remaining configs over the base and hands
+ * the result to the wrapped table's restore(), which builds the new index
+ * before it takes the address's write lock just to swap it in, so readers
+ * never wait for the rebuild. The rebuilt index only holds the segments of
+ * active configs, so expired ones cost no memory or lookup depth.
+ *
+ * A log stays small: configs with no TTL at its head are folded into the base,
+ * a config hidden for its whole life by a newer one is dropped right away,
+ * and the log itself once its last TTL expired. Persona-non-grata flags are
+ * not rolled back by expiry. Inserts to one address take a per-address lock;
+ * lookups go straight to the wrapped table.
+ */
+public class ExpiringConfigTable implements ConfigTable, AutoCloseable {
+    private static final int STRIPES = 1 << 10;
+
+    private final ConfigTable table;
+    private final Object[] locks;
+    // null for an address without active configs with a TTL; guarded by the address's lock
+    private final RuleLog[] logs;
+    private final TimingWheel wheel;
+    private final long tickNanos;
+
+    private final LongAdder expiredConfigs = new LongAdder();
+    private final LongAdder rebuilds = new LongAdder();
+
+    /**
+     * @param tickMillis
+     *          how late past its TTL a config may expire
+     */
+    public ExpiringConfigTable(ConfigTable table, long tickMillis) {
+        this.table = table;
+        locks = new Object[Math.min(1 << table.logSize(), STRIPES)];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+        logs = new RuleLog[1 << table.logSize()];
+        tickNanos = tickMillis * 1000000;
+        // a turn of 2^10 ticks, longer TTLs wait out whole turns
+        wheel = new TimingWheel(tickNanos, 10, this::expire, "config-expiry");
+    }
+
+    public boolean isPacketAllowed(int source, int destination) {
+        return table.isPacketAllowed(source, destination);
+    }
+
+    public void insert(int address, int start, int end, boolean addressAllowed, boolean personaNonGrata) {
+        synchronized (locks[address % locks.length]) {
+            table.insert(address, start, end, addressAllowed, personaNonGrata);
+            RuleLog log = logs[address];
+            if (log != null) {
+                log.add(start, end, addressAllowed, RuleLog.FOREVER);
+                // it hid every config with a TTL, the wrapped table already holds the rest
+                if (log.size == 0) {
+                    logs[address] = null;
+                }
+            }
+        }
+    }
+
+    public void insert(Config config) {
+        if (config.ttlMillis > 0) {
+            insert(config.address, config.addressBegin, config.addressEnd, config.acceptingRange,
+                    config.personaNonGrata, config.ttlMillis);
+        } else {
+            insert(config.address, config.addressBegin, config.addressEnd, config.acceptingRange,
+                    config.personaNonGrata);
+        }
+    }
+
+    private void insert(int address, int start, int end, boolean addressAllowed, boolean personaNonGrata,
+                        long ttlMillis) {
+        long expiresAt = System.nanoTime() + ttlMillis * 1000000;
+        synchronized (locks[address % locks.length]) {
+            RuleLog log = logs[address];
+            if (log == null) {
+                log = new RuleLog(table.segments(address));
+                logs[address] = log;
+            }
+            table.insert(address, start, end, addressAllowed, personaNonGrata);
+            log.add(start, end, addressAllowed, expiresAt);
+        }
+        wheel.schedule(address, expiresAt);
+    }
+
+    /**
+     * Must not run concurrently with inserts to the same addresses.
+     */
+    public void bulkLoad(Config[] configs) {
+        boolean plain = true;
+        for (Config config : configs) {
+            if (config.ttlMillis > 0 || logs[config.address] != null) {
+                plain = false;
+                break;
+            }
+        }
+        if (plain) {
+            table.bulkLoad(configs);
+            return;
+        }
+        for (Config config : configs) {
+            insert(config);
+        }
+    }
+
+    public int logSize() {
+        return table.logSize();
+    }
+
+    public boolean isPersonaNonGrata(int address) {
+        return table.isPersonaNonGrata(address);
+    }
+
+    public long[] segments(int address) {
+        return table.segments(address);
+    }
+
+    /**
+     * Restored state has no TTLs: configs of address pending expiry are kept.
+     */
+    public void restore(int address, long[] segments, boolean personaNonGrata) {
+        synchronized (locks[address % locks.length]) {
+            logs[address] = null;
+            table.restore(address, segments, personaNonGrata);
+        }
+    }
+
+    long getExpiredConfigs() {
+        return expiredConfigs.sum();
+    }
+
+    // addresses rebuilt after an expiry
+    long getRebuilds() {
+        return rebuilds.sum();
+    }
+
+    /**
+     * Configs in the logs of all addresses, including those with no TTL
+     * that wait behind one.
+     */
+    long getLoggedConfigs() {
+        long total = 0;
+        for (int address = 0; address < logs.length; address++) {
+            synchronized (locks[address % locks.length]) {
+                if (logs[address] != null) {
+                    total += logs[address].size;
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Stops expiring configs.
+     */
+    public void close() {
+        wheel.close();
+    }
+
+    // called on the wheel's thread
+    private void expire(int address) {
+        synchronized (locks[address % locks.length]) {
+            RuleLog log = logs[address];
+            long now = System.nanoTime();
+            if (log == null) {
+                return;
+            }
+            long next = log.nextExpiry();
+            if (next > now) {
+                // due within a tick: the entry fired early and is drained, so it must come
+                // back; any later, its config is gone already and the next one has its own entry
+                if (next - now <= tickNanos) {
+                    wheel.schedule(address, next);
+                }
+                return;
+            }
+            expiredConfigs.add(log.expire(now));
+            if (log.size == 0) {
+                logs[address] = null;
+            }
+            table.restore(address, log.paint(), table.isPersonaNonGrata(address));
+            rebuilds.increment();
+        }
+    }
+}
+
+/**
+ * The active configs of one address, oldest first, over the segments all
+ * configs before them left. Not thread-safe.
+ */
+class RuleLog {
+    static final long FOREVER = Long.MAX_VALUE;
+
+    private long[] base;
+    private int[] begins = new int[4];
+    private int[] ends = new int[4];
+    private boolean[] accepting = new boolean[4];
+    private long[] expiresAt = new long[4];
+    int size = 0;
+
+    RuleLog(long[] base) {
+        this.base = base;
+    }
+
+    /**
+     * Appends [begin, end), and drops older configs it hides until they expire.
+     */
+    void add(int begin, int end, boolean accept, long expires) {
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (!(begin <= begins[i] && ends[i] <= end && expiresAt[i] <= expires)) {
+                move(i, kept++);
+            }
+        }
+        size = kept;
+        if (size == begins.length) {
+            begins = Arrays.copyOf(begins, 2 * size);
+            ends = Arrays.copyOf(ends, 2 * size);
+            accepting = Arrays.copyOf(accepting, 2 * size);
+            expiresAt = Arrays.copyOf(expiresAt, 2 * size);
+        }
+        begins[size] = begin;
+        ends[size] = end;
+        accepting[size] = accept;
+        expiresAt[size] = expires;
+        size++;
+        foldPermanent();
+    }
+
+    long nextExpiry() {
+        long next = FOREVER;
+        for (int i = 0; i < size; i++) {
+            next = Math.min(next, expiresAt[i]);
+        }
+        return next;
+    }
+
+    /**
+     * Drops the configs expired by now.
+     * @return
+     *          how many were dropped
+     */
+    int expire(long now) {
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (expiresAt[i] > now) {
+                move(i, kept++);
+            }
+        }
+        int expired = size - kept;
+        size = kept;
+        foldPermanent();
+        return expired;
+    }
+
+    // the base with every logged config painted over it in order
+    long[] paint() {
+        long[] segments = base;
+        for (int i = 0; i < size; i++) {
+            if (begins[i] < ends[i]) {
+                segments = SegmentMap.paint(segments, begins[i], ends[i] - 1, accepting[i]);
+            }
+        }
+        return segments;
+    }
+
+    // configs with no TTL ahead of every config with one never change again
+    private void foldPermanent() {
+        int head = 0;
+        while (head < size && expiresAt[head] == FOREVER) {
+            if (begins[head] < ends[head]) {
+                base = SegmentMap.paint(base, begins[head], ends[head] - 1, accepting[head]);
+            }
+            head++;
+        }
+        if (head == 0) {
+            return;
+        }
+        for (int i = head; i < size; i++) {
+            move(i, i - head);
+        }
+        size -= head;
+    }
+
+    private void move(int from, int to) {
+        begins[to] = begins[from];
+        ends[to] = ends[from];
+        accepting[to] = accepting[from];
+        expiresAt[to] = expiresAt[from];
+    }
+}
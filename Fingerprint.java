@@ -1,12 +1,28 @@
-
-
-
 // from java.util.Random
 class Fingerprint {
 	private final static long m = 0xFFFFFFFFFFFFL;
 	private final static long a = 25214903917L;
 	private final static long c = 11L;
 
+	// the LCG has full period 2^48, so any iteration count reduces mod 2^48.
+	// jumpMul[k], jumpAdd[k] describe the affine map of 2^k steps:
+	// seed -> seed * jumpMul[k] + jumpAdd[k] (mod 2^48)
+	private final static int jumpBits = 48;
+	private final static long[] jumpMul = new long[jumpBits];
+	private final static long[] jumpAdd = new long[jumpBits];
+
+	static {
+		long mul = a;
+		long add = c;
+		for (int k = 0; k < jumpBits; k++) {
+			jumpMul[k] = mul;
+			jumpAdd[k] = add;
+			// square the map: x -> mul * (mul * x + add) + add
+			add = ((mul + 1) * add) & m;
+			mul = (mul * mul) & m;
+		}
+	}
+
 	static long getFingerprint(long iterations, long startSeed) {
 		long seed = startSeed;
 		for (long i = 0; i < iterations; i++) {
@@ -14,4 +30,103 @@ class Fingerprint {
 		}
 		return (seed >> 12) & 0xFFFFL;
 	}
+
+	/**
+	 * Same result as getFingerprint, but composes the LCG steps with the
+	 * precomputed power-of-two jumps, so it costs O(log iterations).
+	 */
+	static long getFingerprintJump(long iterations, long startSeed) {
+		if (iterations <= 0) {
+			return (startSeed >> 12) & 0xFFFFL;
+		}
+		// masked like every step of the loop, also when n reduces to 0
+		long seed = startSeed & m;
+		long n = iterations & m;
+		for (int k = 0; n != 0; k++, n >>>= 1) {
+			if ((n & 1) != 0) {
+				seed = (seed * jumpMul[k] + jumpAdd[k]) & m;
+			}
+		}
+		return (seed >> 12) & 0xFFFFL;
+	}
+
+	/**
+	 * Fingerprints count packets at once: out[i] = getFingerprint(iterations[i], seeds[i]).
+	 * @return
+	 *          the sum of the fingerprints, so callers can accumulate without a second pass
+	 */
+	static long getFingerprints(long[] iterations, long[] seeds, long[] out, int count) {
+		long sum = 0;
+		for (int i = 0; i < count; i++) {
+			long fingerprint = getFingerprintJump(iterations[i], seeds[i]);
+			out[i] = fingerprint;
+			sum += fingerprint;
+		}
+		return sum;
+	}
+}
+
+// checks getFingerprintJump and getFingerprints against the getFingerprint loop
+class FingerprintTestApp {
+	public static void main(String[] args) {
+		java.util.Random random = new java.util.Random(RandomGenerator.DEFAULT_SEED);
+		long[] edgeSeeds = { 0, 1, -1, 0xFFFFFFFFFFFFL, 1L << 48, Long.MAX_VALUE, Long.MIN_VALUE };
+		for (long seed : edgeSeeds) {
+			for (long iterations = -2; iterations <= 70; iterations++) {
+				check(iterations, seed);
+			}
+			for (int k = 1; k < 20; k++) {
+				check((1L << k) - 1, seed);
+				check(1L << k, seed);
+			}
+			checkPeriods(1, 0, seed);
+			checkPeriods(3, 0, seed);
+		}
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		long[] iterations = new long[count];
+		long[] seeds = new long[count];
+		for (int i = 0; i < count; i++) {
+			iterations[i] = random.nextInt(1 << 16);
+			seeds[i] = random.nextLong();
+			check(iterations[i], seeds[i]);
+		}
+		// the loop cannot run 2^48 steps, but they are a full period of the LCG
+		for (int i = 0; i < 1000; i++) {
+			long rest = random.nextInt(1 << 10);
+			long periods = 1 + random.nextInt(1 << 15);
+			checkPeriods(periods, rest, random.nextLong());
+		}
+		long[] out = new long[count];
+		long sum = Fingerprint.getFingerprints(iterations, seeds, out, count);
+		long expectedSum = 0;
+		for (int i = 0; i < count; i++) {
+			long expected = Fingerprint.getFingerprint(iterations[i], seeds[i]);
+			if (out[i] != expected) {
+				throw new IllegalStateException("getFingerprints differs at " + i);
+			}
+			expectedSum += expected;
+		}
+		if (sum != expectedSum) {
+			throw new IllegalStateException("getFingerprints returned sum " + sum + ", expected " + expectedSum);
+		}
+		System.out.println("getFingerprintJump matches getFingerprint on " + count + " random packets");
+	}
+
+	// periods * 2^48 + rest steps, which the loop takes rest of
+	private static void checkPeriods(long periods, long rest, long seed) {
+		long expected = Fingerprint.getFingerprint(rest, seed);
+		if (Fingerprint.getFingerprintJump((periods << 48) + rest, seed) != expected) {
+			throw new IllegalStateException("jump of " + periods + " * 2^48 + " + rest + " from " + seed
+					+ " is not a whole number of periods");
+		}
+	}
+
+	private static void check(long iterations, long seed) {
+		long expected = Fingerprint.getFingerprint(iterations, seed);
+		long jump = Fingerprint.getFingerprintJump(iterations, seed);
+		if (jump != expected) {
+			throw new IllegalStateException("getFingerprintJump(" + iterations + ", " + seed + ") = " + jump
+					+ ", loop " + expected);
+		}
+	}
 }
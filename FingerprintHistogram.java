@@ -0,0 +1,77 @@
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of the 16-bit fingerprints (see Fingerprint.getFingerprint)
+ * across all workers. Every worker records into its own stripe, so the hot
+ * path is a plain read and a release store (lazySet) on memory no other
+ * thread writes: no contended atomics, no CAS. snapshot() merges the stripes
+ * and may be called at any time; counts recorded concurrently with it may or
+ * may not be included, but each one is read whole.
+ *
+ * Stripes are separate arrays padded at both ends, like PaddedPrimitive, so
+ * the counters of two workers never share a cache line.
+ */
+class FingerprintHistogram {
+    static final int FINGERPRINTS = 1 << 16;
+    // 16 longs = two cache lines between stripes, also covering adjacent-line prefetch
+    private static final int PAD = 16;
+
+    private final AtomicLongArray[] stripes;
+
+    /**
+     * @param numStripes
+     *          one per recording thread
+     */
+    FingerprintHistogram(int numStripes) {
+        stripes = new AtomicLongArray[numStripes];
+        for (int i = 0; i < numStripes; i++) {
+            stripes[i] = new AtomicLongArray(PAD + FINGERPRINTS + PAD);
+        }
+    }
+
+    /**
+     * Only ever called by the thread owning stripe.
+     */
+    void record(int stripe, long fingerprint) {
+        AtomicLongArray counts = stripes[stripe];
+        int i = PAD + (int) fingerprint;
+        counts.lazySet(i, counts.get(i) + 1);
+    }
+
+    /**
+     * @return
+     *          count per fingerprint, summed over all stripes
+     */
+    long[] snapshot() {
+        long[] merged = new long[FINGERPRINTS];
+        for (AtomicLongArray counts : stripes) {
+            for (int f = 0; f < FINGERPRINTS; f++) {
+                merged[f] += counts.get(PAD + f);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * One line with the total, the number of distinct fingerprints seen and
+     * the most common one, from a fresh snapshot.
+     */
+    String summary() {
+        long[] counts = snapshot();
+        long total = 0;
+        int distinct = 0;
+        int mode = 0;
+        for (int f = 0; f < FINGERPRINTS; f++) {
+            total += counts[f];
+            if (counts[f] > 0) {
+                distinct++;
+            }
+            if (counts[f] > counts[mode]) {
+                mode = f;
+            }
+        }
+        return String.format(Locale.ROOT, "count %d, distinct %d, most common %d (%d times)",
+                total, distinct, mode, counts[mode]);
+    }
+}
@@ -0,0 +1,294 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Sweeps PacketGeneratorApp over worker counts and any of its -Dfirewall.*
+ * options, as given by a properties file, and reports processed packets per
+ * ms as CSV or JSON: mean and standard deviation over the trials, speedup
+ * over the run with 1 worker and otherwise the same options, GC time, and
+ * CPU time of the process with the packets processed per ms of it.
+ *
+ * Every point of the sweep runs in a JVM of its own, so JIT decisions and
+ * heap state do not leak from one point into the next, and does its warmup
+ * runs there before the timed trials.
+ *
+ * usage: java FirewallSweep sweep.properties
+ *
+ *   # PacketGeneratorApp arguments up to the worker count
+ *   args = 11 12 5 1 3 3 3822 0.24 0.04 0.96
+ *   milliseconds = 2000
+ *   workers = 1,2,4,8
+ *   warmups = 2
+ *   trials = 5
+ *   # every firewall.* key is a dimension, one point per combination of values
+ *   firewall.table = locked,lockfree
+ *   firewall.steal = false,true
+ *   # optional: csv (default) or json, a file to write instead of stdout, extra JVM options
+ *   format = csv
+ *   output = sweep.csv
+ *   jvmArgs = -Xmx4g
+ */
+class FirewallSweep {
+    private static final Pattern TRIAL = Pattern.compile(
+            "Trial \\d+ of \\d+: processed (\\d+) packets in ([0-9.]+) ms, [0-9.]+ per ms, GC (\\d+) ms, CPU (-?\\d+) ms");
+    private static final String OPTION_PREFIX = "firewall.";
+
+    public static void main(String[] args) throws Exception {
+        Properties config = new Properties();
+        try (Reader reader = Files.newBufferedReader(Paths.get(args[0]))) {
+            config.load(reader);
+        }
+        String[] appArgs = required(config, "args").trim().split("\\s+");
+        if (appArgs.length != 10) {
+            throw new IllegalArgumentException("args needs the 10 PacketGeneratorApp arguments before the worker count");
+        }
+        String milliseconds = required(config, "milliseconds").trim();
+        int[] workerCounts = Arrays.stream(required(config, "workers").split(","))
+                .mapToInt(w -> Integer.parseInt(w.trim())).toArray();
+        int warmups = Integer.parseInt(config.getProperty("warmups", "2").trim());
+        int trials = Integer.parseInt(config.getProperty("trials", "5").trim());
+        boolean json = "json".equals(config.getProperty("format", "csv").trim());
+        String jvmArgs = config.getProperty("jvmArgs", "").trim();
+
+        // sorted, so that points and columns come out in the same order every time
+        TreeMap<String, String[]> dimensions = new TreeMap<>();
+        for (String key : config.stringPropertyNames()) {
+            if (key.startsWith(OPTION_PREFIX)) {
+                String[] values = config.getProperty(key).split(",");
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = values[i].trim();
+                }
+                dimensions.put(key, values);
+            }
+        }
+        if (dimensions.containsKey("firewall.workers") || dimensions.containsKey("firewall.warmups")
+                || dimensions.containsKey("firewall.trials")) {
+            throw new IllegalArgumentException("set workers, warmups and trials without the firewall. prefix");
+        }
+
+        List<String> names = new ArrayList<>(dimensions.keySet());
+        List<SweepPoint> points = new ArrayList<>();
+        for (List<String> options : combinations(dimensions)) {
+            for (int workers : workerCounts) {
+                SweepPoint point = run(appArgs, milliseconds, jvmArgs, names, options, workers, warmups, trials);
+                points.add(point);
+                System.err.println(point.describe(names));
+            }
+        }
+        // once all points ran, so the 1-worker run may come anywhere in workers
+        for (SweepPoint point : points) {
+            for (SweepPoint other : points) {
+                if (other.workers == 1 && other.options.equals(point.options)) {
+                    point.single = other;
+                }
+            }
+        }
+
+        String output = config.getProperty("output");
+        try (PrintStream out = output != null ? new PrintStream(output.trim()) : null) {
+            PrintStream target = out != null ? out : System.out;
+            if (json) {
+                writeJson(target, names, points);
+            } else {
+                writeCsv(target, names, points);
+            }
+        }
+    }
+
+    // runs one point in a new JVM with this JVM's classpath and options
+    private static SweepPoint run(String[] appArgs, String milliseconds, String jvmArgs, List<String> names,
+                                   List<String> options, int workers, int warmups, int trials)
+            throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(ProcessHandle.current().info().command().orElse("java"));
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        if (!jvmArgs.isEmpty()) {
+            command.addAll(Arrays.asList(jvmArgs.split("\\s+")));
+        }
+        for (int i = 0; i < names.size(); i++) {
+            command.add("-D" + names.get(i) + "=" + options.get(i));
+        }
+        command.add("-Dfirewall.warmups=" + warmups);
+        command.add("-Dfirewall.trials=" + trials);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(PacketGeneratorApp.class.getName());
+        command.addAll(Arrays.asList(appArgs));
+        command.add(Integer.toString(workers));
+        command.add(milliseconds);
+
+        SweepPoint point = new SweepPoint(options, workers);
+        List<String> log = new ArrayList<>();
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        try (BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = output.readLine()) != null) {
+                Matcher trial = TRIAL.matcher(line);
+                if (trial.matches()) {
+                    point.add(Long.parseLong(trial.group(1)), Double.parseDouble(trial.group(2)),
+                            Long.parseLong(trial.group(3)), Long.parseLong(trial.group(4)));
+                }
+                log.add(line);
+            }
+        }
+        if (process.waitFor() != 0 || point.throughputs.size() != trials) {
+            log.forEach(System.err::println);
+            throw new IllegalStateException("run failed: " + String.join(" ", command));
+        }
+        return point;
+    }
+
+    // every combination of one value per dimension, in order
+    private static List<List<String>> combinations(TreeMap<String, String[]> dimensions) {
+        List<List<String>> result = new ArrayList<>();
+        result.add(new ArrayList<>());
+        for (String[] values : dimensions.values()) {
+            List<List<String>> extended = new ArrayList<>();
+            for (List<String> prefix : result) {
+                for (String value : values) {
+                    List<String> combination = new ArrayList<>(prefix);
+                    combination.add(value);
+                    extended.add(combination);
+                }
+            }
+            result = extended;
+        }
+        return result;
+    }
+
+    private static void writeCsv(PrintStream out, List<String> names, List<SweepPoint> points) {
+        List<String> header = new ArrayList<>(names);
+        header.addAll(Arrays.asList("workers", "trials", "mean_packets_per_ms", "stddev_packets_per_ms",
+                "speedup", "mean_processed", "mean_gc_ms", "mean_cpu_ms", "packets_per_cpu_ms"));
+        out.println(String.join(",", header));
+        for (SweepPoint point : points) {
+            List<String> row = new ArrayList<>(point.options);
+            row.add(Integer.toString(point.workers));
+            row.add(Integer.toString(point.throughputs.size()));
+            row.add(String.format(Locale.ROOT, "%.3f", point.mean()));
+            row.add(String.format(Locale.ROOT, "%.3f", point.stddev()));
+            row.add(point.single != null ? String.format(Locale.ROOT, "%.3f", point.speedup()) : "");
+            row.add(String.format(Locale.ROOT, "%.1f", point.meanProcessed()));
+            row.add(String.format(Locale.ROOT, "%.1f", point.meanGcMillis()));
+            row.add(String.format(Locale.ROOT, "%.1f", point.meanCpuMillis()));
+            row.add(String.format(Locale.ROOT, "%.3f", point.processedPerCpuMilli()));
+            out.println(String.join(",", row));
+        }
+    }
+
+    private static void writeJson(PrintStream out, List<String> names, List<SweepPoint> points) {
+        out.println("[");
+        for (int p = 0; p < points.size(); p++) {
+            SweepPoint point = points.get(p);
+            StringBuilder object = new StringBuilder("  {");
+            for (int i = 0; i < names.size(); i++) {
+                object.append('"').append(names.get(i)).append("\": \"").append(point.options.get(i)).append("\", ");
+            }
+            object.append(String.format(Locale.ROOT, "\"workers\": %d, \"trials\": %d, \"mean_packets_per_ms\": %.3f, "
+                            + "\"stddev_packets_per_ms\": %.3f, \"speedup\": %s, \"mean_processed\": %.1f, "
+                            + "\"mean_gc_ms\": %.1f, \"mean_cpu_ms\": %.1f, \"packets_per_cpu_ms\": %.3f}",
+                    point.workers, point.throughputs.size(), point.mean(), point.stddev(),
+                    point.single != null ? String.format(Locale.ROOT, "%.3f", point.speedup()) : "null",
+                    point.meanProcessed(), point.meanGcMillis(), point.meanCpuMillis(), point.processedPerCpuMilli()));
+            out.println(object + (p + 1 < points.size() ? "," : ""));
+        }
+        out.println("]");
+    }
+
+    private static String required(Properties config, String key) {
+        String value = config.getProperty(key);
+        if (value == null) {
+            throw new IllegalArgumentException("missing " + key);
+        }
+        return value;
+    }
+}
+
+/**
+ * The timed trials of one worker count and one value of every option.
+ */
+class SweepPoint {
+    final List<String> options;
+    final int workers;
+    final List<Double> throughputs = new ArrayList<>();
+    private long processed = 0;
+    private long gcMillis = 0;
+    private long cpuMillis = 0;
+    // the point with 1 worker and the same options, null if the sweep has none
+    SweepPoint single;
+
+    SweepPoint(List<String> options, int workers) {
+        this.options = options;
+        this.workers = workers;
+    }
+
+    void add(long processed, double elapsedMillis, long gcMillis, long cpuMillis) {
+        throughputs.add(processed / elapsedMillis);
+        this.processed += processed;
+        this.gcMillis += gcMillis;
+        this.cpuMillis += cpuMillis;
+    }
+
+    double mean() {
+        double sum = 0;
+        for (double throughput : throughputs) {
+            sum += throughput;
+        }
+        return sum / throughputs.size();
+    }
+
+    double stddev() {
+        if (throughputs.size() < 2) {
+            return 0;
+        }
+        double mean = mean();
+        double squares = 0;
+        for (double throughput : throughputs) {
+            squares += (throughput - mean) * (throughput - mean);
+        }
+        return Math.sqrt(squares / (throughputs.size() - 1));
+    }
+
+    double speedup() {
+        return mean() / single.mean();
+    }
+
+    double meanProcessed() {
+        return (double) processed / throughputs.size();
+    }
+
+    double meanGcMillis() {
+        return (double) gcMillis / throughputs.size();
+    }
+
+    double meanCpuMillis() {
+        return (double) cpuMillis / throughputs.size();
+    }
+
+    // packets per ms of CPU time, how efficiently the cores were used
+    double processedPerCpuMilli() {
+        return (double) processed / Math.max(1, cpuMillis);
+    }
+
+    String describe(List<String> names) {
+        StringBuilder description = new StringBuilder();
+        for (int i = 0; i < names.size(); i++) {
+            description.append(names.get(i)).append('=').append(options.get(i)).append(' ');
+        }
+        return String.format(Locale.ROOT, "%sworkers=%d: %.3f +- %.3f packets per ms", description, workers, mean(), stddev());
+    }
+}
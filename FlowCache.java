@@ -0,0 +1,143 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded, open-addressed cache of packet verdicts keyed by the packed
+ * (source, destination) pair. Every entry is tagged with the config versions
+ * of both addresses it was computed from, so a config packet invalidates the
+ * entries of its own address lazily, the next time they are looked up.
+ *
+ * An entry is four longs (stamp, key, value, spare), two entries per cache
+ * line, and a key probes the two entries of one line. A new key takes an
+ * empty entry of its line if there is one, else the entry not written last,
+ * which the spare long of the line's first entry records. The stamp is a
+ * per-entry seqlock: writers claim it with a CAS and give up if another
+ * writer holds it, readers only re-check it, so a hit takes no lock and
+ * writes nothing.
+ */
+class FlowCache {
+    static final int MISS = -1;
+    static final int DENIED = 0;
+    static final int ALLOWED = 1;
+
+    private static final int STRIDE = 4;
+    private static final int STAMP = 0;
+    private static final int KEY = 1;
+    private static final int VALUE = 2;
+    // in the first entry of a line only: which of its entries was written last
+    private static final int LAST_WRITTEN = 3;
+
+    private final AtomicLongArray entries;
+    private final int shift;
+
+    FlowCache(int logCapacity) {
+        if (logCapacity < 1 || logCapacity > 26) {
+            throw new IllegalArgumentException("logCapacity out of range: " + logCapacity);
+        }
+        entries = new AtomicLongArray(STRIDE << logCapacity);
+        shift = 64 - logCapacity;
+    }
+
+    static long key(int source, int destination) {
+        return ((long) source << 32) | (destination & 0xFFFFFFFFL);
+    }
+
+    static long tag(int sourceVersion, int destinationVersion) {
+        return ((long) (sourceVersion & 0x7FFFFFFF) << 32) | (destinationVersion & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @return
+     *          ALLOWED or DENIED if an entry for key was stored with tag, MISS otherwise
+     */
+    int get(long key, long tag) {
+        int first = firstEntry(key);
+        int result = read(first, key, tag);
+        return result != MISS ? result : read(first + STRIDE, key, tag);
+    }
+
+    void put(long key, long tag, boolean allowed) {
+        int first = firstEntry(key);
+        int entry = chooseEntry(first, key);
+        long stamp = entries.get(entry + STAMP);
+        if ((stamp & 1) != 0 || !entries.compareAndSet(entry + STAMP, stamp, stamp + 1)) {
+            // another writer is filling this entry, skip caching
+            return;
+        }
+        entries.set(entry + KEY, key);
+        entries.set(entry + VALUE, (tag << 1) | (allowed ? 1 : 0));
+        entries.lazySet(entry + STAMP, stamp + 2);
+        entries.lazySet(first + LAST_WRITTEN, entry == first ? 0 : 1);
+    }
+
+    // the entry of the line holding key, else an empty one, else the one not written last
+    private int chooseEntry(int first, long key) {
+        int second = first + STRIDE;
+        if (entries.get(first + KEY) == key && entries.get(first + STAMP) != 0) {
+            return first;
+        }
+        if (entries.get(second + KEY) == key && entries.get(second + STAMP) != 0) {
+            return second;
+        }
+        if (entries.get(first + STAMP) == 0) {
+            return first;
+        }
+        if (entries.get(second + STAMP) == 0) {
+            return second;
+        }
+        return entries.get(first + LAST_WRITTEN) == 0 ? second : first;
+    }
+
+    private int read(int entry, long key, long tag) {
+        long stamp = entries.get(entry + STAMP);
+        // stamp 0: never written, odd: being written
+        if (stamp == 0 || (stamp & 1) != 0) {
+            return MISS;
+        }
+        long storedKey = entries.get(entry + KEY);
+        long value = entries.get(entry + VALUE);
+        if (entries.get(entry + STAMP) != stamp || storedKey != key || (value >>> 1) != tag) {
+            return MISS;
+        }
+        return (int) (value & 1);
+    }
+
+    // index of the first of the two entries key may live in
+    private int firstEntry(long key) {
+        int bucket = (int) ((key * 0x9E3779B97F4A7C15L) >>> shift) & ~1;
+        return bucket * STRIDE;
+    }
+}
+
+/**
+ * Checks that two keys sharing a line are cached at once: a cache of one
+ * line makes every key collide.
+ */
+class FlowCacheTestApp {
+    public static void main(String[] args) {
+        FlowCache cache = new FlowCache(1);
+        long first = FlowCache.key(1, 2);
+        long second = FlowCache.key(3, 4);
+        long third = FlowCache.key(5, 6);
+        long tag = FlowCache.tag(7, 8);
+        cache.put(first, tag, true);
+        cache.put(second, tag, false);
+        check(cache.get(first, tag) == FlowCache.ALLOWED, "first key evicted by the second");
+        check(cache.get(second, tag) == FlowCache.DENIED, "second key not cached");
+        // rewriting a key stays in its entry
+        cache.put(first, FlowCache.tag(7, 9), false);
+        check(cache.get(first, FlowCache.tag(7, 9)) == FlowCache.DENIED, "first key not updated");
+        check(cache.get(second, tag) == FlowCache.DENIED, "update of the first key evicted the second");
+        // a third key replaces the entry not written last
+        cache.put(third, tag, true);
+        check(cache.get(third, tag) == FlowCache.ALLOWED, "third key not cached");
+        check(cache.get(first, FlowCache.tag(7, 9)) == FlowCache.DENIED, "third key evicted the last written");
+        check(cache.get(second, tag) == FlowCache.MISS, "third key did not evict the older entry");
+        System.out.println("FlowCache: both entries of a line in use");
+    }
+
+    private static void check(boolean condition, String failure) {
+        if (!condition) {
+            throw new IllegalStateException(failure);
+        }
+    }
+}
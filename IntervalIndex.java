@@ -0,0 +1,41 @@
+/**
+ * Per-address set of configured ranges. Later inserts win over earlier ones
+ * wherever they overlap, and addresses no range covers are allowed.
+ */
+public interface IntervalIndex {
+    /**
+     * Configures [start, end] (end inclusive) as accepting or rejecting.
+     */
+    void insert(int start, int end, boolean acceptingInterval);
+
+    /**
+     * Inserts configs from up to to of batch in that order, each as
+     * [addressBegin, addressEnd).
+     */
+    default void insertAll(ConfigBulkLoad batch, int from, int to) {
+        for (int k = from; k < to; k++) {
+            insert(batch.begin(k), batch.end(k) - 1, batch.accepting(k));
+        }
+    }
+
+    boolean isAddressAllowed(int address);
+
+    /**
+     * The verdicts of every address in SegmentMap's packed format, consistent
+     * as long as no insert runs concurrently.
+     */
+    long[] segments();
+
+    /**
+     * Restores segments, as returned by segments(), into a new empty index.
+     */
+    default void load(long[] segments) {
+        // uncovered addresses are allowed already, only the rejecting ranges need an insert
+        for (int i = 0; i < segments.length; i++) {
+            if ((segments[i] & 1) == 0) {
+                int end = i + 1 < segments.length ? (int) (segments[i + 1] >>> 1) - 1 : Integer.MAX_VALUE;
+                insert((int) (segments[i] >>> 1), end, false);
+            }
+        }
+    }
+}
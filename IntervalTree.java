@@ -1,8 +1,9 @@
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.ArrayList;
 
-public class IntervalTree {
+public class IntervalTree implements IntervalIndex {
     private volatile TreeNode root;
     private volatile HashMap<Integer, Boolean> cache;
 
@@ -29,25 +30,60 @@ public class IntervalTree {
                 return cache.get(address);
             }
 
-            List<Interval> results = new ArrayList<>();
-            root.findIntervalsContainingValue(address, results);
-            // find the latest interval and return its boolean
-            Interval latestInterval = null;
-            for (Interval interval : results) {
-                if (latestInterval == null) {
-                    latestInterval = interval;
-                } else if (latestInterval.getCreatedAt() < interval.getCreatedAt()) {
-                    latestInterval = interval;
-                }
-            }
-
-            boolean result = latestInterval == null || latestInterval.isAcceptingInterval();
+            boolean result = lookup(root, address);
             cache.put(address, result);
             return result;
         }
         return true;
     }
 
+    /**
+     * Evaluates the tree at every point where its verdict can change: the
+     * starts, ends + 1 and subtree maxima + 1 of its nodes.
+     */
+    public long[] segments() {
+        TreeNode top = root;
+        if (top == null) {
+            return SegmentMap.EMPTY;
+        }
+        List<Integer> bounds = new ArrayList<>();
+        top.collectBounds(bounds);
+        bounds.sort(null);
+        long[] result = new long[bounds.size()];
+        int size = 0;
+        // anything before the first segment is allowed
+        boolean previous = true;
+        int last = -1;
+        for (int i = 0; i < bounds.size(); i++) {
+            int bound = bounds.get(i);
+            if (i > 0 && bound == last) {
+                continue;
+            }
+            last = bound;
+            boolean allowed = lookup(top, bound);
+            if (allowed != previous) {
+                result[size++] = SegmentMap.pack(bound, allowed);
+                previous = allowed;
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    private boolean lookup(TreeNode top, int address) {
+        List<Interval> results = new ArrayList<>();
+        top.findIntervalsContainingValue(address, results);
+        // find the latest interval and return its boolean
+        Interval latestInterval = null;
+        for (Interval interval : results) {
+            if (latestInterval == null) {
+                latestInterval = interval;
+            } else if (latestInterval.getCreatedAt() < interval.getCreatedAt()) {
+                latestInterval = interval;
+            }
+        }
+        return latestInterval == null || latestInterval.isAcceptingInterval();
+    }
+
     private class Interval {
         private final int start;
         private final int end;
@@ -194,6 +230,22 @@ public class IntervalTree {
             return balance(this);
         }
 
+        private void collectBounds(List<Integer> bounds) {
+            bounds.add(getStart());
+            if (getEnd() != Integer.MAX_VALUE) {
+                bounds.add(getEnd() + 1);
+            }
+            if (max != Integer.MAX_VALUE) {
+                bounds.add(max + 1);
+            }
+            if (left != null) {
+                left.collectBounds(bounds);
+            }
+            if (right != null) {
+                right.collectBounds(bounds);
+            }
+        }
+
         private void findIntervalsContainingValue(int value, List<Interval> results) {
             // if the point is greater than the max of this subtree, we're done
             if (max < value) {
@@ -0,0 +1,103 @@
+import java.util.Locale;
+
+/**
+ * Log-bucketed histogram of non-negative long values (nanoseconds here), in
+ * the style of HdrHistogram: values below 32 are counted exactly, above that
+ * every power of two is split into 32 sub-buckets, so a reported value is
+ * within ~3% of the recorded one. record() never allocates.
+ *
+ * Not thread-safe: each recording thread owns its histogram, and readers
+ * merge them. A merge taken while the owner records may miss its latest
+ * values but never sees torn counts on a 64-bit JVM.
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long totalCount = 0;
+    private long totalValue = 0;
+    private long max = 0;
+
+    void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[bucketOf(value)]++;
+        totalCount++;
+        totalValue += value;
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    /**
+     * Adds the counts of other into this histogram.
+     */
+    void merge(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        totalValue += other.totalValue;
+        max = Math.max(max, other.max);
+    }
+
+    long getCount() {
+        return totalCount;
+    }
+
+    long getMax() {
+        return max;
+    }
+
+    double getMean() {
+        return totalCount == 0 ? 0 : (double) totalValue / totalCount;
+    }
+
+    /**
+     * @param percentile
+     *          in [0, 100]
+     * @return
+     *          the highest value equivalent to the recorded value at percentile, 0 if empty
+     */
+    long getValueAtPercentile(double percentile) {
+        long rank = (long) Math.ceil(percentile / 100.0 * totalCount);
+        rank = Math.max(1, Math.min(rank, totalCount));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestValueIn(i), max);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * One line with count, mean, p50, p99, p99.9 and max, values divided by unit.
+     */
+    String summary(double unit, String unitName) {
+        return String.format(Locale.ROOT, "count %d, mean %.2f, p50 %.2f, p99 %.2f, p99.9 %.2f, max %.2f (%s)",
+                totalCount, getMean() / unit, getValueAtPercentile(50) / unit, getValueAtPercentile(99) / unit,
+                getValueAtPercentile(99.9) / unit, max / unit, unitName);
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return ((shift + 1) << SUB_BUCKET_BITS) + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    private static long highestValueIn(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket >>> SUB_BUCKET_BITS) - 1;
+        long lowest = (long) ((bucket & (SUB_BUCKETS - 1)) | SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,96 @@
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * ConfigTable whose readers never write shared memory. Every address holds an
+ * immutable segment array (see SegmentMap), published through a volatile
+ * reference; insert paints a new array and swaps it in. Writers still
+ * serialize per address on a striped monitor, unless the table is built
+ * single-writer: then the caller guarantees every address is only ever
+ * written by one thread (eg. the worker owning it), and insert takes no lock.
+ */
+public class LockFreeAddressConfigTable implements ConfigTable {
+    private static final int WRITE_STRIPES = 1 << 10;
+
+    private final AtomicReferenceArray<long[]> segments;
+    private final PersonaNonGrataSet personaNonGrata;
+    private final Object[] writeLocks;
+    private final boolean singleWriter;
+
+    public LockFreeAddressConfigTable(int logSize) {
+        this(logSize, false);
+    }
+
+    public LockFreeAddressConfigTable(int logSize, boolean singleWriter) {
+        this.singleWriter = singleWriter;
+        segments = new AtomicReferenceArray<>(1 << logSize);
+        for (int i = 0; i < segments.length(); i++) {
+            segments.lazySet(i, SegmentMap.EMPTY);
+        }
+        personaNonGrata = new PersonaNonGrataSet(logSize);
+        writeLocks = new Object[Math.min(1 << logSize, WRITE_STRIPES)];
+        for (int i = 0; i < writeLocks.length; i++) {
+            writeLocks[i] = new Object();
+        }
+    }
+
+    public boolean isPacketAllowed(int source, int destination) {
+        if (personaNonGrata.contains(source)) {
+            return false;
+        }
+        return SegmentMap.isAllowed(segments.get(destination), source);
+    }
+
+    public void insert(int address, int start, int end, boolean addressAllowed, boolean personaNonGrata) {
+        if (singleWriter) {
+            apply(address, start, end, addressAllowed, personaNonGrata);
+            return;
+        }
+        synchronized (writeLocks[address % writeLocks.length]) {
+            apply(address, start, end, addressAllowed, personaNonGrata);
+        }
+    }
+
+    public void bulkLoad(Config[] configs) {
+        ConfigBulkLoad batch = new ConfigBulkLoad(configs, segments.length());
+        batch.forEachAddress((address, from, to) -> {
+            // every address is loaded by one task, but may race with insert
+            synchronized (writeLocks[address % writeLocks.length]) {
+                segments.set(address, SegmentMap.paintAll(segments.get(address), batch, from, to));
+                personaNonGrata.set(address, batch.personaNonGrata(to - 1));
+            }
+        });
+    }
+
+    public int logSize() {
+        return Integer.numberOfTrailingZeros(segments.length());
+    }
+
+    public boolean isPersonaNonGrata(int address) {
+        return personaNonGrata.contains(address);
+    }
+
+    public long[] segments(int address) {
+        return segments.get(address);
+    }
+
+    public void restore(int address, long[] segments, boolean personaNonGrata) {
+        if (singleWriter) {
+            this.segments.set(address, segments);
+            this.personaNonGrata.set(address, personaNonGrata);
+            return;
+        }
+        synchronized (writeLocks[address % writeLocks.length]) {
+            this.segments.set(address, segments);
+            this.personaNonGrata.set(address, personaNonGrata);
+        }
+    }
+
+    private void apply(int address, int start, int end, boolean addressAllowed, boolean personaNonGrata) {
+        // it is [start, end) therefore we paint up to end-1.
+        // the volatile set publishes the new array safely to readers
+        if (start < end) {
+            segments.set(address, SegmentMap.paint(segments.get(address), start, end - 1, addressAllowed));
+        }
+        this.personaNonGrata.set(address, personaNonGrata);
+    }
+}
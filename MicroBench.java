@@ -0,0 +1,416 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Microbenchmarks of the firewall's hot paths, each measured in its own
+ * forked JVM after warmup iterations, reporting throughput and the heap
+ * bytes allocated per operation.
+ *
+ * usage: java MicroBench [name regex]
+ *   -Dbench.forks=n       JVMs per benchmark, 0 runs in this JVM (default 2)
+ *   -Dbench.warmups=n     warmup iterations per fork (default 5)
+ *   -Dbench.iterations=n  measured iterations per fork (default 5)
+ *   -Dbench.millis=n      length of an iteration (default 1000)
+ */
+class MicroBench {
+    private static final String CHILD = "--child";
+    private static final String RESULT = "RESULT";
+
+    // in report order
+    static final Map<String, Supplier<Bench>> BENCHMARKS = new LinkedHashMap<>();
+
+    static {
+        for (int intervals : new int[] {16, 256, 4096}) {
+            BENCHMARKS.put("IntervalTree.insert:" + intervals, () -> new TreeInsertBench(intervals));
+            BENCHMARKS.put("IntervalTree.isAddressAllowed:" + intervals, () -> new TreeLookupBench(intervals));
+        }
+        for (int readers : new int[] {1, 2, 4}) {
+            BENCHMARKS.put("AddressConfigTable.isPacketAllowed:readers=" + readers, () -> new TableBench(readers));
+        }
+        BENCHMARKS.put("WaitFreeQueue.handoff", QueueHandoffBench::new);
+        for (int iterations : new int[] {100, 1000, 10000}) {
+            BENCHMARKS.put("Fingerprint.getFingerprint:" + iterations, () -> new FingerprintBench(iterations));
+        }
+        BENCHMARKS.put("PacketGenerator.getPacket", GetPacketBench::new);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int warmups = Integer.getInteger("bench.warmups", 5);
+        int iterations = Integer.getInteger("bench.iterations", 5);
+        long iterationNanos = Long.getLong("bench.millis", 1000) * 1000000;
+        if (args.length == 2 && args[0].equals(CHILD)) {
+            runIterations(BENCHMARKS.get(args[1]).get(), warmups, iterations, iterationNanos);
+            return;
+        }
+        int forks = Integer.getInteger("bench.forks", 2);
+        String filter = args.length > 0 ? args[0] : ".*";
+        System.out.println(String.format(Locale.ROOT, "%-48s %5s %16s %14s %8s %12s",
+                "Benchmark", "Cnt", "Score", "StdDev", "Units", "alloc B/op"));
+        for (String name : BENCHMARKS.keySet()) {
+            if (!name.matches(filter)) {
+                continue;
+            }
+            List<BenchResult> results = new ArrayList<>();
+            if (forks == 0) {
+                results.addAll(runIterations(BENCHMARKS.get(name).get(), warmups, iterations, iterationNanos));
+            }
+            for (int fork = 0; fork < forks; fork++) {
+                results.addAll(fork(name));
+            }
+            report(name, results);
+        }
+    }
+
+    /**
+     * Runs the iterations of bench, printing one line per measured iteration
+     * for a parent JVM to parse.
+     */
+    private static List<BenchResult> runIterations(Bench bench, int warmups, int iterations, long iterationNanos) {
+        for (int i = 0; i < warmups; i++) {
+            bench.iteration(iterationNanos);
+        }
+        List<BenchResult> results = new ArrayList<>();
+        for (int i = 0; i < iterations; i++) {
+            BenchResult result = bench.iteration(iterationNanos);
+            System.out.println(RESULT + " " + result.ops + " " + result.nanos + " " + result.allocatedBytes);
+            results.add(result);
+        }
+        bench.tearDown();
+        return results;
+    }
+
+    // runs benchmark name in a new JVM with the same classpath and JVM arguments
+    private static List<BenchResult> fork(String name) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(ProcessHandle.current().info().command().orElse("java"));
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(MicroBench.class.getName());
+        command.add(CHILD);
+        command.add(name);
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        List<BenchResult> results = new ArrayList<>();
+        try (BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = output.readLine()) != null) {
+                String[] fields = line.split(" ");
+                if (fields.length == 4 && fields[0].equals(RESULT)) {
+                    results.add(new BenchResult(Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                            Long.parseLong(fields[3])));
+                } else {
+                    System.out.println(line);
+                }
+            }
+        }
+        if (process.waitFor() != 0) {
+            throw new IllegalStateException(name + " failed in its fork");
+        }
+        return results;
+    }
+
+    private static void report(String name, List<BenchResult> results) {
+        double sum = 0;
+        long ops = 0;
+        long bytes = 0;
+        for (BenchResult result : results) {
+            sum += result.opsPerSecond();
+            ops += result.ops;
+            bytes += result.allocatedBytes;
+        }
+        double mean = sum / results.size();
+        double squares = 0;
+        for (BenchResult result : results) {
+            squares += (result.opsPerSecond() - mean) * (result.opsPerSecond() - mean);
+        }
+        double stddev = results.size() > 1 ? Math.sqrt(squares / (results.size() - 1)) : 0;
+        System.out.println(String.format(Locale.ROOT, "%-48s %5d %16.3f %14.3f %8s %12.3f",
+                name, results.size(), mean, stddev, "ops/s", (double) bytes / Math.max(1, ops)));
+    }
+}
+
+class BenchResult {
+    final long ops;
+    final long nanos;
+    final long allocatedBytes;
+
+    BenchResult(long ops, long nanos, long allocatedBytes) {
+        this.ops = ops;
+        this.nanos = nanos;
+        this.allocatedBytes = allocatedBytes;
+    }
+
+    double opsPerSecond() {
+        return ops * 1e9 / nanos;
+    }
+}
+
+/**
+ * One benchmark. An instance lives for a whole fork, so state built in the
+ * constructor is shared by all of its iterations.
+ */
+abstract class Bench {
+    // keeps results alive so the JIT cannot drop the work producing them
+    static volatile long sink;
+
+    abstract BenchResult iteration(long nanos);
+
+    void tearDown() {}
+}
+
+/**
+ * A benchmark of one operation run back to back on the calling thread.
+ */
+abstract class SingleThreadedBench extends Bench {
+    // operations between two reads of the clock
+    private static final int OPS_PER_CHECK = 256;
+
+    abstract long op();
+
+    BenchResult iteration(long nanos) {
+        long result = 0;
+        long ops = 0;
+        long allocated = AllocationCounter.currentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            for (int i = 0; i < OPS_PER_CHECK; i++) {
+                result += op();
+            }
+            ops += OPS_PER_CHECK;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < nanos);
+        allocated = AllocationCounter.currentThreadAllocatedBytes() - allocated;
+        sink = result;
+        return new BenchResult(ops, elapsed, allocated);
+    }
+}
+
+/**
+ * A benchmark of threads running at once; each thread counts its own
+ * operations and allocation.
+ */
+abstract class MultiThreadedBench extends Bench {
+    private volatile boolean running;
+
+    abstract int threads();
+
+    /**
+     * Runs thread number thread until !running(), returns its operations.
+     * The operations of all threads add up to those reported, so a thread
+     * whose work is not measured, such as a background writer, returns 0.
+     */
+    abstract long run(int thread);
+
+    boolean running() {
+        return running;
+    }
+
+    BenchResult iteration(long nanos) {
+        AtomicLong ops = new AtomicLong();
+        AtomicLong allocated = new AtomicLong();
+        Thread[] threads = new Thread[threads()];
+        running = true;
+        for (int t = 0; t < threads.length; t++) {
+            int thread = t;
+            threads[t] = new Thread(() -> {
+                long bytes = AllocationCounter.currentThreadAllocatedBytes();
+                ops.addAndGet(run(thread));
+                allocated.addAndGet(AllocationCounter.currentThreadAllocatedBytes() - bytes);
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        try {
+            Thread.sleep(nanos / 1000000);
+            running = false;
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+        return new BenchResult(ops.get(), System.nanoTime() - start, allocated.get());
+    }
+}
+
+// inserts into trees of up to intervals intervals, starting over once full
+class TreeInsertBench extends SingleThreadedBench {
+    private final int intervals;
+    private final int[] starts = new int[1 << 12];
+    private IntervalTree tree = new IntervalTree();
+    private int size = 0;
+
+    TreeInsertBench(int intervals) {
+        this.intervals = intervals;
+        UniformGenerator random = new UniformGenerator();
+        for (int i = 0; i < starts.length; i++) {
+            starts[i] = random.getRand(1 << 16);
+        }
+    }
+
+    long op() {
+        if (size == intervals) {
+            tree = new IntervalTree();
+            size = 0;
+        }
+        int start = starts[size & (starts.length - 1)];
+        tree.insert(start, start + 64, (size & 1) == 0);
+        return ++size;
+    }
+}
+
+// looks up random addresses in a tree of intervals intervals
+class TreeLookupBench extends SingleThreadedBench {
+    private final IntervalTree tree = new IntervalTree();
+    private final int[] addresses = new int[1 << 12];
+    private int next = 0;
+
+    TreeLookupBench(int intervals) {
+        UniformGenerator random = new UniformGenerator();
+        for (int i = 0; i < intervals; i++) {
+            int start = random.getRand(1 << 16);
+            tree.insert(start, start + 64, (i & 1) == 0);
+        }
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = random.getRand(1 << 16);
+        }
+    }
+
+    long op() {
+        return tree.isAddressAllowed(addresses[next++ & (addresses.length - 1)]) ? 1 : 0;
+    }
+}
+
+// readers look up generated flows while one writer keeps inserting configs
+class TableBench extends MultiThreadedBench {
+    private static final int LOG_SIZE = 12;
+    // pause between two inserts of the writer
+    private static final long WRITER_PAUSE_NANOS = 100_000;
+
+    private final int readers;
+    private final AddressConfigTable table = new AddressConfigTable(LOG_SIZE);
+    private final int[] sources = new int[1 << 12];
+    private final int[] dests = new int[1 << 12];
+    private final Config[] configs = new Config[1 << 12];
+
+    TableBench(int readers) {
+        this.readers = readers;
+        PacketGenerator gen = new PacketGenerator(LOG_SIZE, 10, 5, 1, 3, 3, 3822, 0.24, 0.04, 0.96);
+        for (int i = 0; i < 1 << 16; i++) {
+            Config config = gen.getConfigPacket().config;
+            table.insert(config.address, config.addressBegin, config.addressEnd,
+                    config.acceptingRange, config.personaNonGrata);
+        }
+        for (int i = 0; i < sources.length; i++) {
+            Header header = gen.getDataPacket().header;
+            sources[i] = header.source;
+            dests[i] = header.dest;
+            configs[i] = gen.getConfigPacket().config;
+        }
+    }
+
+    int threads() {
+        return readers + 1;
+    }
+
+    long run(int thread) {
+        if (thread == readers) {
+            // the writer, its inserts are not counted
+            for (int i = 0; running(); i++) {
+                Config config = configs[i & (configs.length - 1)];
+                table.insert(config.address, config.addressBegin, config.addressEnd,
+                        config.acceptingRange, config.personaNonGrata);
+                LockSupport.parkNanos(WRITER_PAUSE_NANOS);
+            }
+            return 0;
+        }
+        long ops = 0;
+        long allowed = 0;
+        int next = thread * 997;
+        while (running()) {
+            for (int i = 0; i < 256; i++, next++) {
+                int flow = next & (sources.length - 1);
+                allowed += table.isPacketAllowed(sources[flow], dests[flow]) ? 1 : 0;
+            }
+            ops += 256;
+        }
+        sink = allowed;
+        return ops;
+    }
+}
+
+// hands preallocated items from a producer to a consumer thread
+class QueueHandoffBench extends MultiThreadedBench {
+    private final WaitFreeQueue<Object> queue = new WaitFreeQueue<>(256);
+    private final Object[] items = new Object[256];
+
+    QueueHandoffBench() {
+        for (int i = 0; i < items.length; i++) {
+            items[i] = i;
+        }
+    }
+
+    int threads() {
+        return 2;
+    }
+
+    long run(int thread) {
+        WaitStrategy wait = WaitStrategy.create("yield");
+        long ops = 0;
+        int idle = 0;
+        if (thread == 1) {
+            for (int i = 0; running(); ) {
+                if (queue.offer(items[i & (items.length - 1)])) {
+                    i++;
+                    idle = 0;
+                } else {
+                    idle = wait.idle(idle);
+                }
+            }
+            return 0;
+        }
+        while (running() || !queue.isEmpty()) {
+            if (queue.poll() != null) {
+                ops++;
+                idle = 0;
+            } else {
+                idle = wait.idle(idle);
+            }
+        }
+        return ops;
+    }
+}
+
+class FingerprintBench extends SingleThreadedBench {
+    private final long iterations;
+    private long seed = 1;
+
+    FingerprintBench(long iterations) {
+        this.iterations = iterations;
+    }
+
+    long op() {
+        return Fingerprint.getFingerprint(iterations, seed++);
+    }
+}
+
+class GetPacketBench extends SingleThreadedBench {
+    private final PacketGenerator gen = new PacketGenerator(11, 12, 5, 1, 3, 3, 3822, 0.24, 0.04, 0.96);
+
+    long op() {
+        return gen.getPacket().type.ordinal();
+    }
+}
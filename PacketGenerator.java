@@ -2,36 +2,162 @@ import java.util.zip.CRC32;
 import java.util.zip.Checksum;
 import java.lang.Object;
 import java.lang.Math;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.Locale;
+import java.util.function.Supplier;
 
 class PacketWorker implements Runnable {
-    private final AddressConfigTable table;
+    // packets taken from the queue per index update
+    private static final int BATCH_SIZE = 16;
+    // -Dfirewall.latency=true; a constant, so with it off the JIT drops the timing code entirely
+    static final boolean RECORD_LATENCY = Boolean.getBoolean("firewall.latency");
+
+    private final ConfigTable table;
     private final PaddedPrimitiveNonVolatile<Boolean> done;
     private final int workerNum;
-    private final WaitFreeQueue<Packet>[] queues;
+    private final BoundedQueue<Packet>[] queues;
+    // the same queues when this worker may steal from its peers, null otherwise
+    private final StealableQueue<Packet>[] victims;
+    private final Packet[] batch = new Packet[BATCH_SIZE];
+    // how this worker waits on an empty queue
+    private final WaitStrategy wait;
+    // how the Dispatcher waits on a full queue, woken after every drain
+    private final WaitStrategy dispatcherWait;
+    // how the Dispatcher of every victim queue waits on it, woken after every steal; null unless stealing
+    private final WaitStrategy[] victimWaits;
+    // shared across workers, this worker records into stripe workerNum; null to skip
+    private final FingerprintHistogram histogram;
+    // shared across workers, counts every data packet toward its train; null to skip
+    private final TrainTracker trains;
+    // nanoseconds from dispatch until processing starts, and processing itself; null unless RECORD_LATENCY
+    final LatencyHistogram queueWait = RECORD_LATENCY ? new LatencyHistogram() : null;
+    final LatencyHistogram serviceTime = RECORD_LATENCY ? new LatencyHistogram() : null;
     private long fingerprint = 0;
+    // packets processed, read once the worker has exited
+    long processed = 0;
+
+    public PacketWorker(PaddedPrimitiveNonVolatile<Boolean> done, int workerNum,
+                                    BoundedQueue<Packet>[] queues, ConfigTable table,
+                                    WaitStrategy wait, WaitStrategy dispatcherWait) {
+        this(done, workerNum, queues, null, table, wait, dispatcherWait, null, null, null);
+    }
+
+    public PacketWorker(PaddedPrimitiveNonVolatile<Boolean> done, int workerNum,
+                                    BoundedQueue<Packet>[] queues, ConfigTable table,
+                                    WaitStrategy wait, WaitStrategy dispatcherWait,
+                                    FingerprintHistogram histogram, TrainTracker trains) {
+        this(done, workerNum, queues, null, table, wait, dispatcherWait, null, histogram, trains);
+    }
 
+    /**
+     * A worker that steals from the other victims when its own queue,
+     * victims[workerNum], is empty.
+     * @param victimWaits
+     *          how the Dispatcher feeding victims[i] waits on it; a steal wakes
+     *          it, since that Dispatcher may be parked on the queue it emptied
+     */
     public PacketWorker(PaddedPrimitiveNonVolatile<Boolean> done, int workerNum,
-                                    WaitFreeQueue<Packet>[] queues, AddressConfigTable table) {
+                                    StealableQueue<Packet>[] victims, ConfigTable table,
+                                    WaitStrategy wait, WaitStrategy[] victimWaits,
+                                    FingerprintHistogram histogram, TrainTracker trains) {
+        this(done, workerNum, victims, victims, table, wait, victimWaits[workerNum], victimWaits,
+                histogram, trains);
+    }
+
+    private PacketWorker(PaddedPrimitiveNonVolatile<Boolean> done, int workerNum,
+                                    BoundedQueue<Packet>[] queues, StealableQueue<Packet>[] victims,
+                                    ConfigTable table, WaitStrategy wait, WaitStrategy dispatcherWait,
+                                    WaitStrategy[] victimWaits, FingerprintHistogram histogram,
+                                    TrainTracker trains) {
         this.table = table;
         this.done = done;
         this.queues = queues;
+        this.victims = victims;
         this.workerNum = workerNum;
+        this.wait = wait;
+        this.dispatcherWait = dispatcherWait;
+        this.victimWaits = victimWaits;
+        this.histogram = histogram;
+        this.trains = trains;
     }
 
     public void run() {
-        Packet pkt;
-        while (!done.value || !queues[workerNum].isEmpty()) {
-            try {
-                pkt = queues[workerNum].deq();
-                if (pkt.type == Packet.MessageType.ConfigPacket) {
-                    table.insert(pkt.config.address, pkt.config.addressBegin,
-                            pkt.config.addressEnd, pkt.config.acceptingRange, pkt.config.personaNonGrata);
-                } else {
-                    if (table.isPacketAllowed(pkt.header.source, pkt.header.dest)) {
-                        fingerprint += Fingerprint.getFingerprint(pkt.body.iterations, pkt.body.seed);
-                    }
+        BoundedQueue<Packet> queue = queues[workerNum];
+        int idle = 0;
+        while (!done.value || !queue.isEmpty()) {
+            int count = queue.drainTo(batch, BATCH_SIZE);
+            if (count == 0 && victims != null) {
+                count = steal();
+            }
+            if (count == 0) {
+                idle = wait.idle(idle);
+                continue;
+            }
+            idle = 0;
+            dispatcherWait.wake();
+            if (RECORD_LATENCY) {
+                processTimed(count);
+                continue;
+            }
+            for (int i = 0; i < count; i++) {
+                process(batch[i]);
+                batch[i] = null;
+            }
+        }
+    }
+
+    // processes the batch like run(), one clock read per packet marking the end of one and start of the next
+    private void processTimed(int count) {
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            Packet pkt = batch[i];
+            batch[i] = null;
+            queueWait.record(start - pkt.dispatchedAt);
+            process(pkt);
+            long end = System.nanoTime();
+            serviceTime.record(end - start);
+            start = end;
+        }
+    }
+
+    // takes up to half of the first non-empty peer queue
+    private int steal() {
+        for (int i = 1; i < victims.length; i++) {
+            int victim = (workerNum + i) % victims.length;
+            int count = victims[victim].steal(batch, BATCH_SIZE);
+            if (count > 0) {
+                victimWaits[victim].wake();
+                return count;
+            }
+        }
+        return 0;
+    }
+
+    private void process(Packet pkt) {
+        processed++;
+        if (pkt.type == Packet.MessageType.ConfigPacket) {
+            table.insert(pkt.config);
+        } else {
+            if (trains != null) {
+                trains.record(pkt.header.source, pkt.header.dest, pkt.header.tag,
+                        pkt.header.sequenceNumber, pkt.header.trainSize);
+            }
+            if (table.isPacketAllowed(pkt.header.source, pkt.header.dest)) {
+                long f = Fingerprint.getFingerprint(pkt.body.iterations, pkt.body.seed);
+                fingerprint += f;
+                if (histogram != null) {
+                    histogram.record(workerNum, f);
                 }
-            } catch (EmptyException e) {}
+            }
         }
     }
 }
@@ -42,15 +168,60 @@ class Dispatcher implements Runnable {
     final PacketGenerator gen;
     long totalPackets = 0;
     final int numSources;
-    final WaitFreeQueue<Packet>[] queues;
+    final BoundedQueue<Packet>[] queues;
+    // how the Dispatcher waits on a full queue
+    final WaitStrategy wait;
+    // how each worker waits on its empty queue, woken after every enqueue
+    final WaitStrategy[] workerWaits;
+    // send every config packet to the worker owning its address instead of round-robin
+    final boolean routeConfigByAddress;
+    // if not null, config packets bypass the data queues through this lane
+    final BoundedQueue<Packet> configLane;
+    // how the ConfigApplier waits on an empty lane, woken after every config
+    final WaitStrategy applierWait;
 
     public Dispatcher(PaddedPrimitiveNonVolatile<Boolean> done, PacketGenerator gen,
-                      int numSources, WaitFreeQueue<Packet>[] queues) {
+                      int numSources, BoundedQueue<Packet>[] queues,
+                      WaitStrategy wait, WaitStrategy[] workerWaits) {
+        this(done, gen, numSources, queues, wait, workerWaits, false);
+    }
+
+    /**
+     * @param routeConfigByAddress
+     *          if true, all config packets for an address go to queue address % queues.length,
+     *          so that worker is the only one writing the address
+     */
+    public Dispatcher(PaddedPrimitiveNonVolatile<Boolean> done, PacketGenerator gen,
+                      int numSources, BoundedQueue<Packet>[] queues,
+                      WaitStrategy wait, WaitStrategy[] workerWaits, boolean routeConfigByAddress) {
+        this(done, gen, numSources, queues, wait, workerWaits, routeConfigByAddress, null, null);
+    }
+
+    /**
+     * Sends config packets to configLane, stamped with their dispatch time,
+     * instead of the data queues.
+     */
+    public Dispatcher(PaddedPrimitiveNonVolatile<Boolean> done, PacketGenerator gen,
+                      int numSources, BoundedQueue<Packet>[] queues,
+                      WaitStrategy wait, WaitStrategy[] workerWaits,
+                      BoundedQueue<Packet> configLane, WaitStrategy applierWait) {
+        this(done, gen, numSources, queues, wait, workerWaits, false, configLane, applierWait);
+    }
+
+    private Dispatcher(PaddedPrimitiveNonVolatile<Boolean> done, PacketGenerator gen,
+                       int numSources, BoundedQueue<Packet>[] queues,
+                       WaitStrategy wait, WaitStrategy[] workerWaits, boolean routeConfigByAddress,
+                       BoundedQueue<Packet> configLane, WaitStrategy applierWait) {
 
         this.done = done;
         this.gen = gen;
         this.numSources = numSources;
         this.queues = queues;
+        this.wait = wait;
+        this.workerWaits = workerWaits;
+        this.routeConfigByAddress = routeConfigByAddress;
+        this.configLane = configLane;
+        this.applierWait = applierWait;
     }
 
     public void run() {
@@ -61,25 +232,156 @@ class Dispatcher implements Runnable {
             for (int i = 0; i < numSources; i++) {
                 tmp = gen.getPacket();
 
-                WaitFreeQueue<Packet> myQueue = queues[queueNum];
-
-                while (true) {
-                    if (!myQueue.isFull()) {
-                        try {
-                            myQueue.enq(tmp);
-                            totalPackets++;
-                            break;
-                        } catch (FullException e) {
-                        }
+                if (configLane != null && tmp.type == Packet.MessageType.ConfigPacket) {
+                    tmp.dispatchedAt = System.nanoTime();
+                    int idle = 0;
+                    while (!configLane.offer(tmp)) {
+                        idle = wait.idle(idle);
                     }
+                    applierWait.wake();
+                    totalPackets++;
+                    continue;
+                }
+
+                if (PacketWorker.RECORD_LATENCY) {
+                    tmp.dispatchedAt = System.nanoTime();
+                }
+                int target = queueNum;
+                if (routeConfigByAddress && tmp.type == Packet.MessageType.ConfigPacket) {
+                    target = tmp.config.address % queues.length;
+                }
+                BoundedQueue<Packet> myQueue = queues[target];
+
+                int idle = 0;
+                while (!myQueue.offer(tmp)) {
+                    idle = wait.idle(idle);
                 }
+                workerWaits[target].wake();
+                totalPackets++;
 
                 queueNum = (queueNum + 1) % queues.length;
             }
         }
     }
 }
+/**
+ * PacketWorker for the garbage-free pipeline: reads packet fields straight
+ * out of its PacketRing slots.
+ */
+class RingPacketWorker implements Runnable {
+    // packets processed before allocation is measured, leaves out class loading and JIT warmup
+    static final long WARMUP_PACKETS = 1 << 14;
+
+    private final ConfigTable table;
+    private final PaddedPrimitiveNonVolatile<Boolean> done;
+    private final PacketRing ring;
+    private final WaitStrategy wait;
+    private final WaitStrategy dispatcherWait;
+    private long fingerprint = 0;
+    long packets = 0;
+    long steadyStateAllocatedBytes = 0;
+
+    public RingPacketWorker(PaddedPrimitiveNonVolatile<Boolean> done, PacketRing ring, ConfigTable table,
+                            WaitStrategy wait, WaitStrategy dispatcherWait) {
+        this.table = table;
+        this.done = done;
+        this.ring = ring;
+        this.wait = wait;
+        this.dispatcherWait = dispatcherWait;
+    }
+
+    public void run() {
+        long allocatedAfterWarmup = 0;
+        int idle = 0;
+        while (!done.value || !ring.isEmpty()) {
+            int slot = ring.peek();
+            if (slot < 0) {
+                idle = wait.idle(idle);
+                continue;
+            }
+            idle = 0;
+            if (ring.kind[slot] == PacketRing.CONFIG) {
+                table.insert(ring.address[slot], ring.addressBegin[slot], ring.addressEnd[slot],
+                        ring.acceptingRange[slot], ring.personaNonGrata[slot]);
+            } else {
+                if (table.isPacketAllowed(ring.source[slot], ring.dest[slot])) {
+                    fingerprint += Fingerprint.getFingerprint(ring.iterations[slot], ring.seed[slot]);
+                }
+            }
+            ring.release();
+            dispatcherWait.wake();
+            if (++packets == WARMUP_PACKETS) {
+                allocatedAfterWarmup = AllocationCounter.currentThreadAllocatedBytes();
+            }
+        }
+        if (packets > WARMUP_PACKETS) {
+            steadyStateAllocatedBytes = AllocationCounter.currentThreadAllocatedBytes() - allocatedAfterWarmup;
+        }
+    }
+}
+
+
+/**
+ * Dispatcher for the garbage-free pipeline: has the generator write every
+ * packet in place into the next worker's PacketRing.
+ */
+class RingDispatcher implements Runnable {
+    PaddedPrimitiveNonVolatile<Boolean> done;
+    // a PacketGenerator, or a PacketTrace for generator-free runs
+    final PacketSource packets;
+    long totalPackets = 0;
+    long steadyStateAllocatedBytes = 0;
+    final int numSources;
+    final PacketRing[] rings;
+    final WaitStrategy wait;
+    final WaitStrategy[] workerWaits;
+
+    public RingDispatcher(PaddedPrimitiveNonVolatile<Boolean> done, PacketSource packets,
+                          int numSources, PacketRing[] rings,
+                          WaitStrategy wait, WaitStrategy[] workerWaits) {
+        this.done = done;
+        this.packets = packets;
+        this.numSources = numSources;
+        this.rings = rings;
+        this.wait = wait;
+        this.workerWaits = workerWaits;
+    }
+
+    public void run() {
+        int ringNum = 0;
+        long allocatedAfterWarmup = 0;
+
+        while (!done.value || ringNum != 0) {
+            for (int i = 0; i < numSources; i++) {
+                PacketRing ring = rings[ringNum];
+                int slot;
+                int idle = 0;
+                while ((slot = ring.claim()) < 0) {
+                    idle = wait.idle(idle);
+                }
+                packets.fillPacket(ring, slot);
+                ring.publish();
+                workerWaits[ringNum].wake();
+                if (++totalPackets == RingPacketWorker.WARMUP_PACKETS) {
+                    allocatedAfterWarmup = AllocationCounter.currentThreadAllocatedBytes();
+                }
+
+                ringNum = (ringNum + 1) % rings.length;
+            }
+        }
+        if (totalPackets > RingPacketWorker.WARMUP_PACKETS) {
+            steadyStateAllocatedBytes = AllocationCounter.currentThreadAllocatedBytes() - allocatedAfterWarmup;
+        }
+    }
+}
+
+
 class PacketGeneratorApp {
+    // config packets that can wait in a Dispatcher's config lane
+    private static final int CONFIG_LANE_CAPACITY = 1 << 10;
+    // initial configs held in memory at once while bulk loading the table
+    private static final int BULK_LOAD_BATCH = 1 << 20;
+
     @SuppressWarnings({"unchecked"})
     public static void main(String[] args) {
         final int numAddressesLog = Integer.parseInt(args[0]);
@@ -92,102 +394,558 @@ class PacketGeneratorApp {
         final double configFraction = Double.parseDouble(args[7]);
         final double pngFraction = Double.parseDouble(args[8]);
         final double acceptingFraction = Double.parseDouble(args[9]);
+        // a positive args[10] runs only that many workers, 0 runs each of -Dfirewall.workers=n,m,... (default 1,2,4,8)
+        final int argWorkers = Integer.parseInt(args[10]);
         final int numMilliseconds = Integer.parseInt(args[11]);
-        PacketGenerator gen = new PacketGenerator(
-                numAddressesLog,
-                numTrainsLog,
-                meanTrainSize,
-                meanTrainsPerComm,
-                meanWindow,
-                meanCommsPerAddress,
-                meanWork,
-                configFraction,
-                pngFraction,
-                acceptingFraction
-        );
-        final int[] numWorkersArr = {1, 2, 4, 8};
-        for (int numWorkers : numWorkersArr) {
-            System.gc();
-            AddressConfigTable table = new AddressConfigTable(numAddressesLog);
-            // initialize the table with config packets
-            double a = Math.pow(Math.pow(2, numAddressesLog), 3. / 2);
-            Packet pkt;
-            for (int i = 0; i < a; i++) {
-                pkt = gen.getConfigPacket();
-                table.insert(pkt.config.address, pkt.config.addressBegin,
-                        pkt.config.addressEnd, pkt.config.acceptingRange, pkt.config.personaNonGrata);
+        final int[] workerCounts = argWorkers > 0
+                ? new int[] {argWorkers} : parseCounts(System.getProperty("firewall.workers", "1,2,4,8"));
+        // -Dfirewall.warmups=n untimed and -Dfirewall.trials=n timed runs per worker count (default 0 and 1),
+        // each from fresh generators and a fresh table so that every run sees the same packets
+        final int warmups = Integer.getInteger("firewall.warmups", 0);
+        final int trials = Integer.getInteger("firewall.trials", 1);
+        // -Dfirewall.index=segments swaps the interval trees for newest-wins segment maps
+        final boolean useSegmentMaps = "segments".equals(System.getProperty("firewall.index", "tree"));
+        // -Dfirewall.table=lockfree uses per-address snapshots that readers never lock
+        final boolean lockFreeTable = "lockfree".equals(System.getProperty("firewall.table", "locked"));
+        // -Dfirewall.flowCacheLog=n caches 2^n flow verdicts in front of the locked table
+        final int flowCacheLog = Integer.getInteger("firewall.flowCacheLog", 0);
+        // -Dfirewall.pipeline=ring moves packets through preallocated PacketRing slots instead of objects
+        final boolean ringPipeline = "ring".equals(System.getProperty("firewall.pipeline", "objects"));
+        // -Dfirewall.executor=virtual|forkjoin runs the PacketWorkers of the object pipeline as tasks
+        // instead of a platform thread each; they must wait with -Dfirewall.wait=block, the default then,
+        // as a task that spins keeps its carrier thread from the workers waiting to run
+        final String executorName = System.getProperty("firewall.executor", "threads");
+        final ExecutorService executor = "threads".equals(executorName) ? null : WorkerExecutors.create(executorName);
+        // -Dfirewall.wait=spin|onspinwait|yield|park|block picks how idle threads wait
+        final String waitStrategy = System.getProperty("firewall.wait", executor != null ? "block" : "spin");
+        // -Dfirewall.steal=true lets idle workers take packets from other workers' queues
+        final boolean workStealing = Boolean.getBoolean("firewall.steal");
+        // -Dfirewall.dispatchers=n runs n Dispatchers, each with its own generator shard
+        final int maxDispatchers = Integer.getInteger("firewall.dispatchers", 1);
+        // -Dfirewall.configRouting=owner sends each address's configs to the one worker owning it;
+        // with the lock-free table that worker then applies them without write locks.
+        // -Dfirewall.configRouting=lane sends them through a separate lane to a dedicated applier
+        final String configRouting = System.getProperty("firewall.configRouting", "roundrobin");
+        final boolean ownerRouting = "owner".equals(configRouting);
+        final boolean configLanes = "lane".equals(configRouting);
+        // -Dfirewall.fingerprints=true records the distribution of computed fingerprints
+        final boolean fingerprintHistogram = Boolean.getBoolean("firewall.fingerprints");
+        // -Dfirewall.trains=true tracks train reassembly across workers, needs at most 2^16 addresses
+        final boolean trackTrains = Boolean.getBoolean("firewall.trains");
+        // -Dfirewall.snapshot=file snapshots the initial config to file and runs on a table restored from it
+        final String snapshotFile = System.getProperty("firewall.snapshot");
+        // -Dfirewall.journal=file journals every config applied during the run to file,
+        // forcing it to disk at most every -Dfirewall.fsyncMillis=n milliseconds; this serializes
+        // config application across workers, see JournalingConfigTable
+        final String journalFile = System.getProperty("firewall.journal");
+        final int fsyncMillis = Integer.getInteger("firewall.fsyncMillis", 10);
+        // -Dfirewall.trace=file replays the packets of file through the ring pipeline, recording
+        // -Dfirewall.traceLength=n packets (default 2^22) of a fresh generator to it first if it does not exist
+        final String traceFile = System.getProperty("firewall.trace");
+        final long traceLength = Long.getLong("firewall.traceLength", 1L << 22);
+        // -Dfirewall.blockTtlMillis=n expires the rejecting configs generated after the initial config
+        // n ms after they were applied, checking every -Dfirewall.expiryTickMillis=n ms (default 1)
+        final long blockTtlMillis = Long.getLong("firewall.blockTtlMillis", 0);
+        final long expiryTickMillis = Long.getLong("firewall.expiryTickMillis", 1);
+        // -Dfirewall.latency=true records the queue wait and service time of every packet, see PacketWorker
+        if (executor != null && (ringPipeline || traceFile != null)) {
+            throw new IllegalArgumentException("worker executors need the object pipeline");
+        }
+        if (executor != null && !"block".equals(waitStrategy)) {
+            throw new IllegalArgumentException("worker executors need -Dfirewall.wait=block, not " + waitStrategy);
+        }
+        if (blockTtlMillis > 0 && (ringPipeline || traceFile != null)) {
+            throw new IllegalArgumentException("config TTLs need the object pipeline");
+        }
+        if (ownerRouting && (maxDispatchers > 1 || workStealing)) {
+            throw new IllegalArgumentException(
+                    "owner config routing needs a single dispatcher and no work stealing");
+        }
+        // the ring pipeline hands configs to every worker, which would break the single writer,
+        // and has no config lanes
+        if ((ownerRouting || configLanes) && (ringPipeline || traceFile != null)) {
+            throw new IllegalArgumentException(configRouting + " config routing needs the object pipeline");
+        }
+        Supplier<PacketGenerator[]> freshGenerators = () -> {
+            PacketGenerator[] generators = new PacketGenerator[maxDispatchers];
+            for (int shard = 0; shard < generators.length; shard++) {
+                generators[shard] = new PacketGenerator(
+                        numAddressesLog,
+                        numTrainsLog,
+                        meanTrainSize,
+                        meanTrainsPerComm,
+                        meanWindow,
+                        meanCommsPerAddress,
+                        meanWork,
+                        configFraction,
+                        pngFraction,
+                        acceptingFraction,
+                        PacketGenerator.shardSeed(shard)
+                );
             }
-            System.out.println("Finished the initial config");
-            // initialize queues for workers
-            WaitFreeQueue<Packet>[] queues = new WaitFreeQueue[numWorkers];
-            for (int i = 0; i < queues.length; i++) {
-                // we can have 256 packets in the flight at once
-                // split them evenly across all workers
-                queues[i] = new WaitFreeQueue<>((256 - numWorkers) / numWorkers);
+            return generators;
+        };
+        PacketTrace trace = null;
+        if (traceFile != null) {
+            trace = openTrace(Paths.get(traceFile), traceLength, numAddressesLog, new PacketGenerator(
+                    numAddressesLog, numTrainsLog, meanTrainSize, meanTrainsPerComm, meanWindow,
+                    meanCommsPerAddress, meanWork, configFraction, pngFraction, acceptingFraction));
+        }
+        for (int numWorkers : workerCounts) {
+            for (int trial = -warmups; trial < trials; trial++) {
+                System.gc();
+                PacketGenerator[] generators = freshGenerators.get();
+                PacketGenerator gen = generators[0];
+                // with TTLs the expiry thread writes too, so the table cannot count on a single writer
+                Supplier<ConfigTable> tables = () -> lockFreeTable
+                        ? new LockFreeAddressConfigTable(numAddressesLog,
+                                (ownerRouting || configLanes) && blockTtlMillis == 0)
+                        : new AddressConfigTable(numAddressesLog,
+                                useSegmentMaps ? SegmentMap::new : IntervalTree::new, flowCacheLog);
+                ConfigTable table = tables.get();
+                // initialize the table with config packets, bulk loaded a batch at a time
+                double a = Math.pow(Math.pow(2, numAddressesLog), 3. / 2);
+                long initialConfigs = (long) Math.ceil(a);
+                for (long loaded = 0; loaded < initialConfigs; ) {
+                    Config[] batch = new Config[(int) Math.min(initialConfigs - loaded, BULK_LOAD_BATCH)];
+                    for (int i = 0; i < batch.length; i++) {
+                        batch[i] = gen.getConfigPacket().config;
+                    }
+                    table.bulkLoad(batch);
+                    loaded += batch.length;
+                }
+                System.out.println("Finished the initial config");
+                ConfigJournal journal = journalFile != null ? openJournal(Paths.get(journalFile), fsyncMillis) : null;
+                if (snapshotFile != null) {
+                    table = restartFromSnapshot(table, tables.get(), Paths.get(snapshotFile),
+                            journal != null ? journal.appended() : 0);
+                }
+                if (journal != null) {
+                    table = new JournalingConfigTable(table, journal);
+                }
+                ExpiringConfigTable expiring = null;
+                if (blockTtlMillis > 0) {
+                    expiring = new ExpiringConfigTable(table, expiryTickMillis);
+                    table = expiring;
+                    for (PacketGenerator generator : generators) {
+                        generator.blockTtlMillis = blockTtlMillis;
+                    }
+                }
+                long gcBefore = gcMillis();
+                long cpuBefore = cpuMillis();
+                if (ringPipeline || trace != null) {
+                    if (trace != null) {
+                        // every run sees the same packets
+                        trace.rewind();
+                    }
+                    TrialResult result = runRingPipeline(trace != null ? trace : gen, table, numWorkers,
+                            numMilliseconds, waitStrategy);
+                    reportTrial(numWorkers, trial, warmups, trials, result,
+                            gcMillis() - gcBefore, cpuMillis() - cpuBefore);
+                    if (journal != null) {
+                        closeJournal(journal, Paths.get(journalFile),
+                                snapshotFile != null ? Paths.get(snapshotFile) : null, tables.get());
+                    }
+                    continue;
+                }
+                // initialize queues for workers; the array keeps the queue class,
+                // workers that steal cast it back
+                @SuppressWarnings("unchecked")
+                BoundedQueue<Packet>[] queues = (BoundedQueue<Packet>[]) (workStealing
+                        ? new StealableQueue<?>[numWorkers] : new WaitFreeQueue<?>[numWorkers]);
+                for (int i = 0; i < queues.length; i++) {
+                    // we can have 256 packets in the flight at once
+                    // split them evenly across all workers
+                    int capacity = (256 - numWorkers) / numWorkers;
+                    queues[i] = workStealing ? new StealableQueue<>(capacity) : new WaitFreeQueue<>(capacity);
+                }
+
+                // allocate and initialize locks and any signals used to marshal threads (eg. done signals)
+                PaddedPrimitiveNonVolatile<Boolean> done = new PaddedPrimitiveNonVolatile<>(false);
+                WaitStrategy[] workerWaits = new WaitStrategy[numWorkers];
+                for (int i = 0; i < workerWaits.length; i++) {
+                    workerWaits[i] = WaitStrategy.create(waitStrategy);
+                }
+                //
+                // allocate and inialize Dispatcher and Worker threads.
+                // every queue keeps a single producer: Dispatcher d feeds the
+                // queues whose index is d modulo the number of dispatchers
+                final int numDispatchers = Math.min(maxDispatchers, numWorkers);
+                Dispatcher[] dispatchers = new Dispatcher[numDispatchers];
+                Thread[] dispatchThreads = new Thread[numDispatchers];
+                WaitStrategy[] dispatcherWaits = new WaitStrategy[numDispatchers];
+                @SuppressWarnings("unchecked")
+                BoundedQueue<Packet>[] lanes = (BoundedQueue<Packet>[]) new BoundedQueue<?>[numDispatchers];
+                WaitStrategy applierWait = WaitStrategy.create(waitStrategy);
+                for (int d = 0; d < numDispatchers; d++) {
+                    int numQueues = (numWorkers - d + numDispatchers - 1) / numDispatchers;
+                    @SuppressWarnings("unchecked")
+                    BoundedQueue<Packet>[] shardQueues = (BoundedQueue<Packet>[]) new BoundedQueue<?>[numQueues];
+                    WaitStrategy[] shardWaits = new WaitStrategy[numQueues];
+                    for (int j = 0; j < numQueues; j++) {
+                        shardQueues[j] = queues[d + j * numDispatchers];
+                        shardWaits[j] = workerWaits[d + j * numDispatchers];
+                    }
+                    dispatcherWaits[d] = WaitStrategy.create(waitStrategy);
+                    if (configLanes) {
+                        lanes[d] = new WaitFreeQueue<>(CONFIG_LANE_CAPACITY);
+                        dispatchers[d] = new Dispatcher(done, generators[d], numQueues, shardQueues,
+                                dispatcherWaits[d], shardWaits, lanes[d], applierWait);
+                    } else {
+                        dispatchers[d] = new Dispatcher(done, generators[d], numQueues, shardQueues,
+                                dispatcherWaits[d], shardWaits, ownerRouting);
+                    }
+                    dispatchThreads[d] = new Thread(dispatchers[d]);
+                }
+
+                FingerprintHistogram histogram = fingerprintHistogram ? new FingerprintHistogram(numWorkers) : null;
+                // every generator keeps 2^numTrainsLog trains open, give them a quarter of the slots
+                int dispatchersLog = 32 - Integer.numberOfLeadingZeros(numDispatchers - 1);
+                TrainTracker trains = trackTrains
+                        ? new TrainTracker(numAddressesLog, Math.max(4, numTrainsLog + dispatchersLog + 2)) : null;
+                Thread workerThreads[] = new Thread[queues.length];
+                PacketWorker[] workers = new PacketWorker[queues.length];
+                // the wait of the Dispatcher feeding each queue
+                WaitStrategy[] producerWaits = new WaitStrategy[queues.length];
+                for (int i = 0; i < producerWaits.length; i++) {
+                    producerWaits[i] = dispatcherWaits[i % numDispatchers];
+                }
+                for (int i = 0; i < workerThreads.length; i++) {
+                    PacketWorker workerData = workStealing
+                            ? new PacketWorker(done, i, (StealableQueue<Packet>[]) queues, table,
+                                    workerWaits[i], producerWaits, histogram, trains)
+                            : new PacketWorker(done, i, queues, table, workerWaits[i], producerWaits[i],
+                                    histogram, trains);
+                    workers[i] = workerData;
+                    workerThreads[i] = executor == null ? new Thread(workerData) : null;
+                }
+                ConfigApplier applier = configLanes
+                        ? new ConfigApplier(done, lanes, table, applierWait, dispatcherWaits) : null;
+                Thread applierThread = configLanes ? new Thread(applier) : null;
+
+                // call .start() on your Workers
+                Future<?>[] workerTasks = new Future<?>[workers.length];
+                for (int i = 0; i < workers.length; i++) {
+                    if (executor != null) {
+                        workerTasks[i] = executor.submit(workers[i]);
+                    } else {
+                        workerThreads[i].start();
+                    }
+                }
+                if (applierThread != null)
+                    applierThread.start();
+
+                StopWatch timer = new StopWatch();
+                // start the timer
+                timer.startTimer();
+                // call .start() on your Dispatchers
+                for (Thread dispatchThread : dispatchThreads)
+                    dispatchThread.start();
+
+                try {
+                    Thread.sleep(numMilliseconds);
+                } catch (InterruptedException ignore) {}
+
+                // assert signals to stop Dispatcher
+                // call .join() on Dispatcher
+                done.value = true;
+                // a Dispatcher blocked on a full queue only sees done once woken
+                for (WaitStrategy dispatcherWait : dispatcherWaits) {
+                    dispatcherWait.wake();
+                }
+                try {
+                    for (Thread dispatchThread : dispatchThreads) {
+                        dispatchThread.join();
+                    }
+                } catch (InterruptedException e) {
+                    System.out.println("broke in dispatcher join");
+                }
+                // blocked waiters only see done once woken
+                for (WaitStrategy workerWait : workerWaits) {
+                    workerWait.wake();
+                }
+                applierWait.wake();
+
+                // assert signals to stop Workers - they are responsible for leaving
+                // the queues empty
+                //
+                // call .join() for each Worker
+                //
+                try {
+                    for (int i = 0; i < workers.length; i++) {
+                        if (executor != null) {
+                            workerTasks[i].get();
+                        } else {
+                            workerThreads[i].join();
+                        }
+                    }
+                    if (applierThread != null)
+                        applierThread.join();
+                } catch (InterruptedException e) {
+                    System.out.println("broke in worker join");
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("worker failed", e.getCause());
+                }
+
+                timer.stopTimer();
+                long totalCount = 0;
+                for (Dispatcher dispatcher : dispatchers) {
+                    totalCount += dispatcher.totalPackets;
+                }
+                long processed = applier != null ? applier.configToVisible.getCount() : 0;
+                for (PacketWorker worker : workers) {
+                    processed += worker.processed;
+                }
+                // report the total number of packets processed and total time
+                reportTrial(numWorkers, trial, warmups, trials,
+                        new TrialResult(totalCount, processed, timer.getElapsedTime()),
+                        gcMillis() - gcBefore, cpuMillis() - cpuBefore);
+                if (PacketWorker.RECORD_LATENCY) {
+                    reportLatency(workers);
+                }
+                if (applier != null) {
+                    System.out.println("Config-to-visible latency: " + applier.configToVisible.summary(1000.0, "us"));
+                }
+                if (journal != null) {
+                    closeJournal(journal, Paths.get(journalFile),
+                                snapshotFile != null ? Paths.get(snapshotFile) : null, tables.get());
+                }
+                if (expiring != null) {
+                    expiring.close();
+                    System.out.println("Expired configs: " + expiring.getExpiredConfigs()
+                            + ", addresses rebuilt " + expiring.getRebuilds()
+                            + ", configs still logged " + expiring.getLoggedConfigs());
+                }
+                if (histogram != null) {
+                    System.out.println("Fingerprints: " + histogram.summary());
+                }
+                if (trains != null) {
+                    System.out.println("Trains: completed " + trains.getCompletedTrains()
+                            + ", open " + trains.getOpenTrains()
+                            + ", out of order packets " + trains.getOutOfOrderPackets()
+                            + ", untracked packets " + trains.getUntrackedPackets());
+                }
             }
+        }
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Prints the throughput of one run, and a line for FirewallSweep to parse.
+     * @param trial
+     *          negative for warmup runs, counting up to 0
+     */
+    private static void reportTrial(int numWorkers, int trial, int warmups, int trials,
+                                    TrialResult result, long gcMillis, long cpuMillis) {
+        System.out.println("Num workers: " + numWorkers);
+        System.out.println("Packets per ms: " + (result.dispatched / result.elapsedMillis));
+        // in the root locale, so FirewallSweep parses it whatever the default
+        System.out.println(String.format(Locale.ROOT,
+                "%s %d of %d: processed %d packets in %.3f ms, %.3f per ms, GC %d ms, CPU %d ms",
+                trial < 0 ? "Warmup" : "Trial", trial < 0 ? warmups + trial + 1 : trial + 1,
+                trial < 0 ? warmups : trials, result.processed, result.elapsedMillis,
+                result.processed / result.elapsedMillis, gcMillis, cpuMillis));
+    }
+
+    // CPU time of all threads of the process since the JVM started, -1 if the JVM does not tell
+    private static long cpuMillis() {
+        java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (!(os instanceof com.sun.management.OperatingSystemMXBean)) {
+            return -1;
+        }
+        return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime() / 1000000;
+    }
 
-            // allocate and initialize locks and any signals used to marshal threads (eg. done signals)
-            PaddedPrimitiveNonVolatile<Boolean> done = new PaddedPrimitiveNonVolatile<>(false);
-            //
-            // allocate and inialize Dispatcher and Worker threads
-            Dispatcher dispatchData = new Dispatcher(done, gen, numWorkers, queues);
-            Thread dispatchThread = new Thread(dispatchData);
-
-            Thread workerThreads[] = new Thread[queues.length];
-            for (int i = 0; i < workerThreads.length; i++) {
-                PacketWorker workerData = new PacketWorker(done, i, queues, table);
-                workerThreads[i] = new Thread(workerData);
+    // total time spent in collections since the JVM started
+    private static long gcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, collector.getCollectionTime());
+        }
+        return total;
+    }
+
+    private static int[] parseCounts(String counts) {
+        String[] fields = counts.split(",");
+        int[] result = new int[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            result[i] = Integer.parseInt(fields[i].trim());
+        }
+        return result;
+    }
+
+    /**
+     * Merges the latency histograms of workers and prints the totals, then
+     * the tail of every worker.
+     */
+    private static void reportLatency(PacketWorker[] workers) {
+        LatencyHistogram queueWait = new LatencyHistogram();
+        LatencyHistogram serviceTime = new LatencyHistogram();
+        for (PacketWorker worker : workers) {
+            queueWait.merge(worker.queueWait);
+            serviceTime.merge(worker.serviceTime);
+        }
+        System.out.println("Queue wait: " + queueWait.summary(1000.0, "us"));
+        System.out.println("Service time: " + serviceTime.summary(1000.0, "us"));
+        for (int i = 0; i < workers.length; i++) {
+            System.out.println(String.format(Locale.ROOT,
+                    "  worker %d: queue wait p99 %.2f us, service time p99 %.2f us, %d packets",
+                    i, workers[i].queueWait.getValueAtPercentile(99) / 1000.0,
+                    workers[i].serviceTime.getValueAtPercentile(99) / 1000.0, workers[i].serviceTime.getCount()));
+        }
+    }
+
+    /**
+     * Snapshots table to file, restores the snapshot into empty and returns it.
+     * @param journalSequence
+     *          the journal position table is at, where a recovery from the snapshot resumes replay
+     */
+    private static ConfigTable restartFromSnapshot(ConfigTable table, ConfigTable empty, Path file,
+                                                   long journalSequence) {
+        try {
+            long start = System.nanoTime();
+            ConfigSnapshot.write(table, journalSequence, file);
+            long written = System.nanoTime();
+            ConfigSnapshot.open(file).restoreInto(empty);
+            long restored = System.nanoTime();
+            System.out.println("Snapshot of " + Files.size(file) + " bytes written in "
+                    + (written - start) / 1000000 + " ms, restored in " + (restored - written) / 1000000 + " ms");
+            return empty;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Maps the trace at file, recording length packets of gen to it first if it does not exist.
+     * Fails if the trace was recorded for other than 2^logSize addresses.
+     */
+    private static PacketTrace openTrace(Path file, long length, int logSize, PacketGenerator gen) {
+        try {
+            if (!Files.exists(file)) {
+                long start = System.nanoTime();
+                PacketTrace.record(gen, logSize, length, file);
+                System.out.println("Recorded " + length + " packets to " + file + " in "
+                        + (System.nanoTime() - start) / 1000000 + " ms");
             }
+            return PacketTrace.open(file, logSize);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // a new, empty journal at file
+    private static ConfigJournal openJournal(Path file, int fsyncMillis) {
+        try {
+            Files.deleteIfExists(file);
+            return new ConfigJournal(file, fsyncMillis);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 
-            // call .start() on your Workers
-            for (Thread workerThread : workerThreads)
-                workerThread.start();
-
-            StopWatch timer = new StopWatch();
-            // start the timer
-            timer.startTimer();
-            // call .start() on your Dispatcher
-            dispatchThread.start();
-
-            try {
-                Thread.sleep(numMilliseconds);
-            } catch (InterruptedException ignore) {}
-
-            // assert signals to stop Dispatcher
-            // call .join() on Dispatcher
-            done.value = true;
-            try {
-                dispatchThread.join();
-            } catch (InterruptedException e) {
-                System.out.println("broke in dispatcher join");
+    /**
+     * Closes journal, then times a recovery into empty: snapshot, unless null,
+     * then the records of file from the snapshot's journal sequence on.
+     */
+    private static void closeJournal(ConfigJournal journal, Path file, Path snapshot, ConfigTable empty) {
+        try {
+            journal.close();
+            long start = System.nanoTime();
+            long from = 0;
+            if (snapshot != null) {
+                // recover the way a restart would: the snapshot, then the journal from where it was taken
+                ConfigSnapshot restored = ConfigSnapshot.open(snapshot);
+                restored.restoreInto(empty);
+                from = restored.journalSequence();
             }
+            long records = ConfigJournal.replay(file, from, empty) - from;
+            System.out.println("Journal of " + records + " configs replayed"
+                    + (snapshot != null ? " over the snapshot" : "") + " in "
+                    + (System.nanoTime() - start) / 1000000 + " ms");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 
-            // assert signals to stop Workers - they are responsible for leaving
-            // the queues empty
-            //
-            // call .join() for each Worker
-            //
-            try {
-                for (Thread workerThread : workerThreads) {
-                    workerThread.join();
-                }
-            } catch (InterruptedException e) {
-                System.out.println("broke in worker join");
+    private static TrialResult runRingPipeline(PacketSource packets, ConfigTable table, int numWorkers,
+                                               int numMilliseconds, String waitStrategy) {
+        PacketRing[] rings = new PacketRing[numWorkers];
+        WaitStrategy[] workerWaits = new WaitStrategy[numWorkers];
+        for (int i = 0; i < rings.length; i++) {
+            rings[i] = new PacketRing((256 - numWorkers) / numWorkers);
+            workerWaits[i] = WaitStrategy.create(waitStrategy);
+        }
+        WaitStrategy dispatcherWait = WaitStrategy.create(waitStrategy);
+        PaddedPrimitiveNonVolatile<Boolean> done = new PaddedPrimitiveNonVolatile<>(false);
+        RingDispatcher dispatchData = new RingDispatcher(done, packets, numWorkers, rings, dispatcherWait, workerWaits);
+        Thread dispatchThread = new Thread(dispatchData);
+        RingPacketWorker[] workers = new RingPacketWorker[numWorkers];
+        Thread[] workerThreads = new Thread[numWorkers];
+        for (int i = 0; i < workerThreads.length; i++) {
+            workers[i] = new RingPacketWorker(done, rings[i], table, workerWaits[i], dispatcherWait);
+            workerThreads[i] = new Thread(workers[i]);
+        }
+
+        for (Thread workerThread : workerThreads)
+            workerThread.start();
+        StopWatch timer = new StopWatch();
+        timer.startTimer();
+        dispatchThread.start();
+        try {
+            Thread.sleep(numMilliseconds);
+        } catch (InterruptedException ignore) {}
+        done.value = true;
+        try {
+            dispatchThread.join();
+            // blocked waiters only see done once woken
+            for (WaitStrategy workerWait : workerWaits) {
+                workerWait.wake();
             }
+            for (Thread workerThread : workerThreads) {
+                workerThread.join();
+            }
+        } catch (InterruptedException e) {
+            System.out.println("broke in ring pipeline join");
+        }
+        timer.stopTimer();
 
-            timer.stopTimer();
-            final long totalCount = dispatchData.totalPackets;
-            // report the total number of packets processed and total time
-            System.out.println("Num workers: " + numWorkers);
-            System.out.println("Packets per ms: " + (totalCount / timer.getElapsedTime()));
+        long steadyStatePackets = Math.max(0, dispatchData.totalPackets - RingPacketWorker.WARMUP_PACKETS);
+        long workerBytes = 0;
+        long processed = 0;
+        for (RingPacketWorker worker : workers) {
+            steadyStatePackets += Math.max(0, worker.packets - RingPacketWorker.WARMUP_PACKETS);
+            workerBytes += worker.steadyStateAllocatedBytes;
+            processed += worker.packets;
         }
+        // config packets allocate inside the table, everything else should be 0
+        System.out.println("Steady-state bytes allocated per packet: "
+                + (double) (dispatchData.steadyStateAllocatedBytes + workerBytes) / Math.max(1, steadyStatePackets));
+        return new TrialResult(dispatchData.totalPackets, processed, timer.getElapsedTime());
     }
 }
 
-class PacketGenerator {
+/**
+ * Packet counts and length of one timed run of the firewall.
+ */
+class TrialResult {
+    final long dispatched;
+    final long processed;
+    final double elapsedMillis;
+
+    TrialResult(long dispatched, long processed, double elapsedMillis) {
+        this.dispatched = dispatched;
+        this.processed = processed;
+        this.elapsedMillis = elapsedMillis;
+    }
+}
+
+class PacketGenerator implements PacketSource {
     final AddressPairGenerator pairGen;
     final ExponentialGenerator expGen;
-    final UniformGenerator uniGen = new UniformGenerator();
+    final UniformGenerator uniGen;
     final int mask; // numTrains - 1
     final int addressesMask;
     final double meanTrainSize;
@@ -200,6 +958,8 @@ class PacketGenerator {
     int numConfigPackets = 0;
     int configAddressMask;
     PacketStruct[] trains;
+    // TTL of the rejecting configs generated from now on, 0 to keep them forever
+    long blockTtlMillis = 0;
 
     public PacketGenerator(
             int numAddressesLog,
@@ -212,9 +972,32 @@ class PacketGenerator {
             double configFraction,
             double pngFraction,
             double acceptingFraction) {
-        this.expGen = new ExponentialGenerator((1.0d / configFraction) - 1);
+        this(numAddressesLog, numTrainsLog, meanTrainSize, meanTrainsPerComm, meanWindow,
+                meanCommsPerAddress, meanWork, configFraction, pngFraction, acceptingFraction,
+                RandomGenerator.DEFAULT_SEED);
+    }
+
+    /**
+     * @param seed
+     *          seeds every random stream of this generator, must be non-negative.
+     *          Generators with different seeds produce independent packet streams
+     */
+    public PacketGenerator(
+            int numAddressesLog,
+            int numTrainsLog,
+            double meanTrainSize,
+            double meanTrainsPerComm,
+            int meanWindow,
+            int meanCommsPerAddress,
+            int meanWork,
+            double configFraction,
+            double pngFraction,
+            double acceptingFraction,
+            int seed) {
+        this.uniGen = new UniformGenerator(seed);
+        this.expGen = new ExponentialGenerator((1.0d / configFraction) - 1, seed);
         this.pairGen = new AddressPairGenerator(meanCommsPerAddress,
-                numAddressesLog, (double) meanWindow);
+                numAddressesLog, (double) meanWindow, seed);
         this.mask = (1 << numTrainsLog) - 1;
         this.addressesMask = (1 << numAddressesLog) - 1;
         this.meanTrainSize = meanTrainSize;
@@ -226,12 +1009,23 @@ class PacketGenerator {
         this.acceptingFraction = acceptingFraction;
         this.trains = new PacketStruct[mask + 1];
         for (int i = 0; i <= mask; i++) {
-            this.trains[i] = new PacketStruct(pairGen.getPair(),
+            pairGen.advance();
+            this.trains[i] = new PacketStruct(pairGen.pairSource, pairGen.pairDest,
                     expGen.getRand(meanTrainSize), expGen.getRand(meanTrainsPerComm),
                     expGen.getRand(this.meanWork), uniGen.getRand());
         }
     }
 
+    /**
+     * Seed of generator shard number shard. Shard 0 uses the default seed,
+     * so a single shard reproduces the unsharded packet stream.
+     */
+    static int shardSeed(int shard) {
+        // mangle keeps non-negative inputs non-negative
+        return shard == 0 ? RandomGenerator.DEFAULT_SEED
+                : new RandomGenerator().mangle(RandomGenerator.DEFAULT_SEED + shard);
+    }
+
     public Packet getPacket() {
         if (timeToNextConfigPacket == 0) {
             numConfigPackets++;
@@ -242,51 +1036,109 @@ class PacketGenerator {
     }
 
     public Packet getConfigPacket() {
-        lastConfigAddress = pairGen.getPair().source;
+        pairGen.advance();
+        lastConfigAddress = pairGen.pairSource;
         int addressBegin = uniGen.getRand(addressesMask - configAddressMask);
-        return new Packet(new Config(lastConfigAddress, uniGen.getUnitRand() < pngFraction,
-                uniGen.getUnitRand() < acceptingFraction, addressBegin,
-                uniGen.getRand(addressBegin + 1, addressBegin + configAddressMask)));
+        boolean personaNonGrata = uniGen.getUnitRand() < pngFraction;
+        boolean acceptingRange = uniGen.getUnitRand() < acceptingFraction;
+        return new Packet(new Config(lastConfigAddress, personaNonGrata, acceptingRange, addressBegin,
+                uniGen.getRand(addressBegin + 1, addressBegin + configAddressMask),
+                acceptingRange ? 0 : blockTtlMillis));
     }
 
     public Packet getDataPacket() {
-        if (timeToNextConfigPacket > 0)
-            timeToNextConfigPacket--;
-        int trainIndex = uniGen.getRand() & mask;
-        PacketStruct pkt = trains[trainIndex];
+        PacketStruct pkt = nextTrain();
         Packet packet = new Packet(
-                new Header(pkt.pair.source, pkt.pair.dest, pkt.sequenceNumber, pkt.trainSize, pkt.tag),
+                new Header(pkt.source, pkt.dest, pkt.sequenceNumber, pkt.trainSize, pkt.tag),
                 new Body(expGen.getRand(pkt.meanWork), uniGen.getRand()));
+        advanceTrain(pkt);
+        return packet;
+    }
+
+    /**
+     * Writes the same packet getPacket() would return into slot of ring,
+     * without allocating.
+     */
+    public void fillPacket(PacketRing ring, int slot) {
+        if (timeToNextConfigPacket == 0) {
+            numConfigPackets++;
+            timeToNextConfigPacket = expGen.getRand();
+            fillConfigPacket(ring, slot);
+        } else
+            fillDataPacket(ring, slot);
+    }
+
+    public void fillConfigPacket(PacketRing ring, int slot) {
+        pairGen.advance();
+        lastConfigAddress = pairGen.pairSource;
+        int addressBegin = uniGen.getRand(addressesMask - configAddressMask);
+        ring.kind[slot] = PacketRing.CONFIG;
+        ring.address[slot] = lastConfigAddress;
+        ring.personaNonGrata[slot] = uniGen.getUnitRand() < pngFraction;
+        ring.acceptingRange[slot] = uniGen.getUnitRand() < acceptingFraction;
+        ring.addressBegin[slot] = addressBegin;
+        ring.addressEnd[slot] = uniGen.getRand(addressBegin + 1, addressBegin + configAddressMask);
+    }
+
+    public void fillDataPacket(PacketRing ring, int slot) {
+        PacketStruct pkt = nextTrain();
+        ring.kind[slot] = PacketRing.DATA;
+        ring.source[slot] = pkt.source;
+        ring.dest[slot] = pkt.dest;
+        ring.sequenceNumber[slot] = pkt.sequenceNumber;
+        ring.trainSize[slot] = pkt.trainSize;
+        ring.tag[slot] = pkt.tag;
+        ring.iterations[slot] = expGen.getRand(pkt.meanWork);
+        ring.seed[slot] = uniGen.getRand();
+        advanceTrain(pkt);
+    }
+
+    private PacketStruct nextTrain() {
+        if (timeToNextConfigPacket > 0)
+            timeToNextConfigPacket--;
+        return trains[uniGen.getRand() & mask];
+    }
+
+    private void advanceTrain(PacketStruct pkt) {
         pkt.sequenceNumber++;
         if (pkt.sequenceNumber == pkt.trainSize) {// this was the last packet
             pkt.sequenceNumber = 0;
             pkt.trainNumber++;
         }
-        if (pkt.trainNumber == pkt.totalTrains) {// this was the last train
-            trains[trainIndex] = new PacketStruct(pairGen.getPair(),
+        if (pkt.trainNumber == pkt.totalTrains) {// this was the last train, reuse the struct
+            pairGen.advance();
+            pkt.reset(pairGen.pairSource, pairGen.pairDest,
                     expGen.getRand(meanTrainSize), expGen.getRand(meanTrainsPerComm),
                     expGen.getRand(meanWork), uniGen.getRand());
         }
-        return packet;
     }
 }
 
 class PacketStruct {
-    final AddressPair pair;
-    final int trainSize;
-    final int totalTrains;
-    final double meanWork;
-    final int tag;
+    int source;
+    int dest;
+    int trainSize;
+    int totalTrains;
+    double meanWork;
+    int tag;
     int sequenceNumber = 0;
     int trainNumber = 0;
 
-    public PacketStruct(AddressPair pair, int trainSize, int totalTrains,
+    public PacketStruct(int source, int dest, int trainSize, int totalTrains,
                         double meanWork, int tag) {
-        this.pair = pair;
+        reset(source, dest, trainSize, totalTrains, meanWork, tag);
+    }
+
+    void reset(int source, int dest, int trainSize, int totalTrains,
+               double meanWork, int tag) {
+        this.source = source;
+        this.dest = dest;
         this.trainSize = trainSize;
         this.totalTrains = totalTrains;
         this.meanWork = meanWork;
         this.tag = tag;
+        this.sequenceNumber = 0;
+        this.trainNumber = 0;
     }
 }
 
@@ -310,12 +1162,19 @@ class AddressPairGenerator {
     final int logSize;
     int source;
     int dest;
+    // the pair produced by the last advance()
+    int pairSource;
+    int pairDest;
     double sourceResidue;
     double destResidue;
     ExponentialGenerator expGen;
     UniformGenerator uniGen;
 
     public AddressPairGenerator(int meanCommsPerAddress, int logSize, double mean) {
+        this(meanCommsPerAddress, logSize, mean, RandomGenerator.DEFAULT_SEED);
+    }
+
+    public AddressPairGenerator(int meanCommsPerAddress, int logSize, double mean, int seed) {
         this.speed = 2.0d / ((double) meanCommsPerAddress);
         this.mask = (1 << logSize) - 1;
         this.logSize = logSize;
@@ -323,11 +1182,20 @@ class AddressPairGenerator {
         this.dest = 0;
         this.sourceResidue = 0.0d;
         this.destResidue = 0.0d;
-        this.expGen = new ExponentialGenerator(mean);
-        this.uniGen = new UniformGenerator();
+        this.expGen = new ExponentialGenerator(mean, seed);
+        this.uniGen = new UniformGenerator(seed);
     }
 
     public AddressPair getPair() {
+        advance();
+        return new AddressPair(pairSource, pairDest);
+    }
+
+    /**
+     * Moves to the next pair and stores it in pairSource and pairDest,
+     * without allocating.
+     */
+    public void advance() {
         sourceResidue = sourceResidue + speed * uniGen.getUnitRand();
         destResidue = destResidue + speed * uniGen.getUnitRand();
         while (sourceResidue > 0.0d) {
@@ -338,8 +1206,8 @@ class AddressPairGenerator {
             dest = (dest + mask) & mask; // he's walking backward...
             destResidue = destResidue - 1.0d;
         }
-        return new AddressPair(uniGen.mangle(1 + ((source + expGen.getRand()))) & mask,
-                uniGen.mangle(1 + ((dest + expGen.getRand()))) & mask);
+        pairSource = uniGen.mangle(1 + ((source + expGen.getRand()))) & mask;
+        pairDest = uniGen.mangle(1 + ((dest + expGen.getRand()))) & mask;
     }
 }
 
@@ -360,6 +1228,9 @@ class Packet {
     final Header header;
     final Body body;
     final MessageType type;
+    // System.nanoTime() when a Dispatcher handed the packet off, if it sends it to a config lane
+    // or PacketWorker.RECORD_LATENCY is on
+    long dispatchedAt = 0;
 
     public Packet(Config config) {
         this.config = config;
@@ -394,14 +1265,22 @@ class Config {
     final boolean acceptingRange;
     final int addressBegin;
     final int addressEnd;
+    // milliseconds until the range reverts, 0 to keep it forever
+    final long ttlMillis;
 
     public Config(int address, boolean personaNonGrata, boolean acceptingRange,
                   int addressBegin, int addressEnd) {
+        this(address, personaNonGrata, acceptingRange, addressBegin, addressEnd, 0);
+    }
+
+    public Config(int address, boolean personaNonGrata, boolean acceptingRange,
+                  int addressBegin, int addressEnd, long ttlMillis) {
         this.address = address;
         this.personaNonGrata = personaNonGrata;
         this.acceptingRange = acceptingRange;
         this.addressBegin = addressBegin;
         this.addressEnd = addressEnd;
+        this.ttlMillis = ttlMillis;
     }
 }
 
@@ -0,0 +1,92 @@
+/**
+ * Single-producer single-consumer ring of preallocated packet slots, laid out
+ * as one primitive array per field. The producer claims a slot, writes the
+ * fields in place and publishes it; the consumer reads the fields straight
+ * from the arrays and releases the slot. No packet objects are created.
+ */
+class PacketRing {
+    static final byte DATA = 0;
+    static final byte CONFIG = 1;
+
+    final int capacity;
+    final byte[] kind;
+    // data packets: header and body
+    final int[] source;
+    final int[] dest;
+    final int[] sequenceNumber;
+    final int[] trainSize;
+    final int[] tag;
+    final long[] iterations;
+    final long[] seed;
+    // config packets
+    final int[] address;
+    final boolean[] personaNonGrata;
+    final boolean[] acceptingRange;
+    final int[] addressBegin;
+    final int[] addressEnd;
+
+    // padded indices with cached opposite copies, as in WaitFreeQueue
+    private final QueueIndex head = new QueueIndex();
+    private final QueueIndex tail = new QueueIndex();
+
+    public PacketRing(int capacity) {
+        this.capacity = capacity;
+        kind = new byte[capacity];
+        source = new int[capacity];
+        dest = new int[capacity];
+        sequenceNumber = new int[capacity];
+        trainSize = new int[capacity];
+        tag = new int[capacity];
+        iterations = new long[capacity];
+        seed = new long[capacity];
+        address = new int[capacity];
+        personaNonGrata = new boolean[capacity];
+        acceptingRange = new boolean[capacity];
+        addressBegin = new int[capacity];
+        addressEnd = new int[capacity];
+    }
+
+    /**
+     * Producer side.
+     * @return
+     *          the slot to fill before calling publish(), or -1 if the ring is full
+     */
+    public int claim() {
+        long t = tail.value;
+        if (t - tail.cachedOpposite == capacity) {
+            tail.cachedOpposite = head.value;
+            if (t - tail.cachedOpposite == capacity) {
+                return -1;
+            }
+        }
+        return (int) (t % capacity);
+    }
+
+    public void publish() {
+        tail.lazySet(tail.value + 1);
+    }
+
+    /**
+     * Consumer side.
+     * @return
+     *          the oldest published slot, to read before calling release(), or -1 if the ring is empty
+     */
+    public int peek() {
+        long h = head.value;
+        if (h == head.cachedOpposite) {
+            head.cachedOpposite = tail.value;
+            if (h == head.cachedOpposite) {
+                return -1;
+            }
+        }
+        return (int) (h % capacity);
+    }
+
+    public void release() {
+        head.lazySet(head.value + 1);
+    }
+
+    public boolean isEmpty() {
+        return tail.value - head.value == 0;
+    }
+}
@@ -0,0 +1,10 @@
+/**
+ * Where a RingDispatcher takes its packets from: a live PacketGenerator or a
+ * recorded PacketTrace.
+ */
+interface PacketSource {
+    /**
+     * Writes the next packet into slot of ring, without allocating.
+     */
+    void fillPacket(PacketRing ring, int slot);
+}
@@ -0,0 +1,162 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Fixed-width binary recording of a packet stream, replayed through a memory
+ * mapping. Replay copies the fields of the next record straight into a
+ * PacketRing slot, so it creates no objects and costs a fraction of running
+ * the generator, and every replay of a trace sees the same packets. When
+ * the end of the trace is reached, replay starts over.
+ *
+ * Layout, little-endian: a header of magic, version, log of the number of
+ * addresses, a zero pad (ints) and the number of records (long), then
+ * 40-byte records:
+ *   int   kind: DATA or CONFIG, plus PERSONA_NON_GRATA and ACCEPTING for configs
+ *   int   source, or address
+ *   int   dest, or addressBegin
+ *   int   sequenceNumber, or addressEnd
+ *   int   trainSize
+ *   int   tag
+ *   long  iterations
+ *   long  seed
+ */
+class PacketTrace implements PacketSource {
+    static final int RECORD_BYTES = 40;
+    private static final int HEADER_BYTES = 24;
+    private static final int MAGIC = 0x46575452;
+    private static final int VERSION = 2;
+    private static final int KIND_MASK = 1;
+    private static final int PERSONA_NON_GRATA = 2;
+    private static final int ACCEPTING = 4;
+    // a mapping covers at most this many records, keeping it below 1 GB
+    private static final int RECORDS_PER_MAP = (1 << 30) / RECORD_BYTES;
+    // records buffered per write while recording
+    private static final int WRITE_RECORDS = 1 << 14;
+
+    private final MappedByteBuffer[] maps;
+    private final long records;
+    private long next = 0;
+
+    private PacketTrace(MappedByteBuffer[] maps, long records) {
+        this.maps = maps;
+        this.records = records;
+    }
+
+    /**
+     * Writes the next count packets of gen, which draws addresses below
+     * 2^logSize, to file, replacing it.
+     */
+    static void record(PacketGenerator gen, int logSize, long count, Path file) throws IOException {
+        // a one-slot ring to let gen fill packets in place
+        PacketRing packet = new PacketRing(1);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_RECORDS * RECORD_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(logSize).putInt(0).putLong(count);
+            for (long i = 0; i < count; i++) {
+                gen.fillPacket(packet, 0);
+                if (packet.kind[0] == PacketRing.DATA) {
+                    buffer.putInt(PacketRing.DATA).putInt(packet.source[0]).putInt(packet.dest[0])
+                            .putInt(packet.sequenceNumber[0]).putInt(packet.trainSize[0]).putInt(packet.tag[0])
+                            .putLong(packet.iterations[0]).putLong(packet.seed[0]);
+                } else {
+                    int kind = PacketRing.CONFIG | (packet.personaNonGrata[0] ? PERSONA_NON_GRATA : 0)
+                            | (packet.acceptingRange[0] ? ACCEPTING : 0);
+                    buffer.putInt(kind).putInt(packet.address[0]).putInt(packet.addressBegin[0])
+                            .putInt(packet.addressEnd[0]).putInt(0).putInt(0).putLong(0).putLong(0);
+                }
+                if (buffer.remaining() < RECORD_BYTES) {
+                    write(channel, buffer);
+                }
+            }
+            write(channel, buffer);
+        }
+    }
+
+    /**
+     * Maps file read-only, replaying from its first record.
+     * @param logSize
+     *          log of the number of addresses of the table the trace is replayed to,
+     *          which must be the one it was recorded with
+     */
+    static PacketTrace open(Path file, int logSize) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0) {
+                    break;
+                }
+            }
+            if (header.hasRemaining() || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                throw new IOException("not a packet trace: " + file);
+            }
+            if (header.getInt(8) != logSize) {
+                throw new IOException("packet trace of 2^" + header.getInt(8) + " addresses, table of 2^"
+                        + logSize + ": " + file);
+            }
+            long records = header.getLong(16);
+            if (records <= 0 || channel.size() != HEADER_BYTES + records * RECORD_BYTES) {
+                throw new IOException("truncated packet trace: " + file);
+            }
+            MappedByteBuffer[] maps = new MappedByteBuffer[(int) ((records + RECORDS_PER_MAP - 1) / RECORDS_PER_MAP)];
+            for (int i = 0; i < maps.length; i++) {
+                long first = (long) i * RECORDS_PER_MAP;
+                long count = Math.min(RECORDS_PER_MAP, records - first);
+                maps[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        HEADER_BYTES + first * RECORD_BYTES, count * RECORD_BYTES);
+                maps[i].order(ByteOrder.LITTLE_ENDIAN);
+            }
+            return new PacketTrace(maps, records);
+        }
+    }
+
+    long records() {
+        return records;
+    }
+
+    /**
+     * Restarts the replay from the first record.
+     */
+    void rewind() {
+        next = 0;
+    }
+
+    public void fillPacket(PacketRing ring, int slot) {
+        MappedByteBuffer map = maps[(int) (next / RECORDS_PER_MAP)];
+        int at = (int) (next % RECORDS_PER_MAP) * RECORD_BYTES;
+        if (++next == records) {
+            next = 0;
+        }
+        int kind = map.getInt(at);
+        if ((kind & KIND_MASK) == PacketRing.DATA) {
+            ring.kind[slot] = PacketRing.DATA;
+            ring.source[slot] = map.getInt(at + 4);
+            ring.dest[slot] = map.getInt(at + 8);
+            ring.sequenceNumber[slot] = map.getInt(at + 12);
+            ring.trainSize[slot] = map.getInt(at + 16);
+            ring.tag[slot] = map.getInt(at + 20);
+            ring.iterations[slot] = map.getLong(at + 24);
+            ring.seed[slot] = map.getLong(at + 32);
+        } else {
+            ring.kind[slot] = PacketRing.CONFIG;
+            ring.address[slot] = map.getInt(at + 4);
+            ring.personaNonGrata[slot] = (kind & PERSONA_NON_GRATA) != 0;
+            ring.acceptingRange[slot] = (kind & ACCEPTING) != 0;
+            ring.addressBegin[slot] = map.getInt(at + 8);
+            ring.addressEnd[slot] = map.getInt(at + 12);
+        }
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
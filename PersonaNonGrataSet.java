@@ -0,0 +1,30 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Persona-non-grata flags of every address packed one bit each, so checking
+ * a source is a single volatile word read with no locking. Updates CAS the
+ * word because neighbouring addresses share it.
+ */
+public class PersonaNonGrataSet {
+    private final AtomicLongArray words;
+
+    public PersonaNonGrataSet(int logSize) {
+        words = new AtomicLongArray(((1 << logSize) + 63) >>> 6);
+    }
+
+    public boolean contains(int address) {
+        return (words.get(address >>> 6) & (1L << address)) != 0;
+    }
+
+    public void set(int address, boolean personaNonGrata) {
+        int index = address >>> 6;
+        long bit = 1L << address;
+        while (true) {
+            long word = words.get(index);
+            long updated = personaNonGrata ? word | bit : word & ~bit;
+            if (word == updated || words.compareAndSet(index, word, updated)) {
+                return;
+            }
+        }
+    }
+}
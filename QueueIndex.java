@@ -0,0 +1,36 @@
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * A queue index padded onto its own cache line, plus the owning side's last
+ * seen copy of the opposite index.
+ */
+class QueueIndex {
+  long pad1;
+  long pad2;
+  long pad3;
+  long pad4;
+  long pad5;
+  long pad6;
+  long pad7;
+  volatile long value;
+  long cachedOpposite;
+  long pad11;
+  long pad12;
+  long pad13;
+  long pad14;
+  long pad15;
+  long pad16;
+  long pad17;
+
+  private static final AtomicLongFieldUpdater<QueueIndex> updater =
+          AtomicLongFieldUpdater.newUpdater(QueueIndex.class, "value");
+
+  void lazySet(long newValue) {
+    updater.lazySet(this, newValue);
+  }
+
+  boolean compareAndSet(long expect, long update) {
+    return updater.compareAndSet(this, expect, update);
+  }
+}
+
@@ -42,6 +42,10 @@ class ExponentialGenerator {
     this.mean = mean;
     randGen = new RandomGenerator();
   }
+  public ExponentialGenerator(double mean, int seed) {
+    this.mean = mean;
+    randGen = new RandomGenerator(seed);
+  }
   int getRand() {
     return (int) Math.ceil(mean*(logBase-Math.log(base-randGen.getRand())));
   }
@@ -52,12 +56,13 @@ class ExponentialGenerator {
 }
 
 class RandomGenerator {
+  static final int DEFAULT_SEED = 59009;
   int seed;
   public RandomGenerator(int seed) {
     this.seed = seed;
   }
   public RandomGenerator() {
-    this.seed = 59009;
+    this.seed = DEFAULT_SEED;
   }
   int getRand() {
     seed = mangle(seed) + 1;
@@ -66,9 +71,37 @@ class RandomGenerator {
   void setSeed(int seed) {
     this.seed = seed;
   }
-  public int mangle(int seed) { 
+  /**
+   * Fills out with the next out.length values of getRand(), in order.
+   */
+  void fill(int[] out) {
+    int next = seed;
+    for (int i = 0; i < out.length; i++) {
+      next = mangle(next) + 1;
+      out[i] = next;
+    }
+    seed = next;
+  }
+
+  // crcTable8[b] and crcTable7[b] hold b after 8 and 7 rounds of mangleBitSerial
+  private static final int[] crcTable8 = crcTable(8);
+  private static final int[] crcTable7 = crcTable(7);
+
+  // same result as mangleBitSerial(seed, 31), 8 bits per step. every round
+  // is linear, and the bits above the low byte only get shifted (with the
+  // sign extension of >>), so k rounds are crc >> k xor the table entry of
+  // the low k bits
+  public int mangle(int seed) {
+    int crc = seed;
+    crc = (crc >> 8) ^ crcTable8[crc & 0xFF];
+    crc = (crc >> 8) ^ crcTable8[crc & 0xFF];
+    crc = (crc >> 8) ^ crcTable8[crc & 0xFF];
+    crc = (crc >> 7) ^ crcTable7[crc & 0x7F];
+    return crc;
+  }
+
+  static int mangleBitSerial(int seed, int iterations) {
     final int CRC_POLY = 954680065; // 0x38E74301 - standard CRC30 from CDMA
-    final int iterations = 31;
     int crc = seed;
     for( int i = 0; i < iterations; i++ ) {
       if( ( crc & 1 ) > 0 )
@@ -78,5 +111,50 @@ class RandomGenerator {
     }
     return crc;
   }
+
+  private static int[] crcTable(int bits) {
+    int[] table = new int[1 << bits];
+    for (int b = 0; b < table.length; b++) {
+      table[b] = mangleBitSerial(b, bits);
+    }
+    return table;
+  }
 }
 
+// checks the table-driven mangle and fill against mangleBitSerial
+class MangleTestApp {
+  public static void main(String[] args) {
+    int[] edges = { 0, 1, -1, 0x7F, 0x80, 0xFF, 0x100, Integer.MAX_VALUE, Integer.MIN_VALUE,
+        RandomGenerator.DEFAULT_SEED };
+    RandomGenerator gen = new RandomGenerator();
+    for (int seed : edges) {
+      check(gen, seed);
+    }
+    java.util.Random random = new java.util.Random(RandomGenerator.DEFAULT_SEED);
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+    for (int i = 0; i < count; i++) {
+      check(gen, random.nextInt());
+    }
+    // fill hands out what getRand would have, and leaves the same seed
+    RandomGenerator serial = new RandomGenerator();
+    RandomGenerator bulk = new RandomGenerator();
+    int[] out = new int[1000];
+    bulk.fill(out);
+    for (int i = 0; i < out.length; i++) {
+      if (out[i] != serial.getRand()) {
+        throw new IllegalStateException("fill differs from getRand at " + i);
+      }
+    }
+    if (bulk.getRand() != serial.getRand()) {
+      throw new IllegalStateException("fill left another seed than getRand");
+    }
+    System.out.println("mangle matches mangleBitSerial on " + (edges.length + count) + " seeds");
+  }
+
+  private static void check(RandomGenerator gen, int seed) {
+    if (gen.mangle(seed) != RandomGenerator.mangleBitSerial(seed, 31)) {
+      throw new IllegalStateException("mangle(" + seed + ") = " + gen.mangle(seed)
+          + ", bit-serial " + RandomGenerator.mangleBitSerial(seed, 31));
+    }
+  }
+}
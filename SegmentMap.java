@@ -0,0 +1,286 @@
+import java.util.Arrays;
+
+/**
+ * "Newest-wins" alternative to IntervalTree. Every insert paints its range
+ * over a sorted list of disjoint segments, so a lookup is a single floor
+ * search and the size is bounded by the distinct boundaries, not by the
+ * number of inserts.
+ *
+ * Each segment is packed as (start << 1) | allowed and covers addresses up
+ * to the next segment's start; anything before the first segment is allowed.
+ * The array is never modified once published, so readers need no locks as
+ * long as there is a single writer at a time.
+ */
+public class SegmentMap implements IntervalIndex {
+    static final long[] EMPTY = new long[0];
+
+    private volatile long[] segments = EMPTY;
+
+    public void insert(int start, int end, boolean acceptingInterval) {
+        if (start > end) {
+            return;
+        }
+        segments = paint(segments, start, end, acceptingInterval);
+    }
+
+    public void insertAll(ConfigBulkLoad batch, int from, int to) {
+        segments = paintAll(segments, batch, from, to);
+    }
+
+    public boolean isAddressAllowed(int address) {
+        return isAllowed(segments, address);
+    }
+
+    public long[] segments() {
+        return segments;
+    }
+
+    // segments is never modified, so it can be adopted without a copy
+    public void load(long[] segments) {
+        this.segments = segments;
+    }
+
+    static boolean isAllowed(long[] segments, int address) {
+        // index of the last segment starting at or before address
+        int i = countBelow(segments, ((long) address + 1) << 1) - 1;
+        return i < 0 || (segments[i] & 1) != 0;
+    }
+
+    /**
+     * Returns a copy of segments with [start, end] (end inclusive) set to allowed.
+     */
+    static long[] paint(long[] segments, int start, int end, boolean allowed) {
+        boolean hasTail = end != Integer.MAX_VALUE;
+        boolean tailAllowed = hasTail && isAllowed(segments, end + 1);
+        // segments before start are kept, segments starting in [start, end + 1] are replaced
+        int head = countBelow(segments, (long) start << 1);
+        int rest = hasTail ? countBelow(segments, ((long) end + 2) << 1) : segments.length;
+
+        long[] result = new long[head + 2 + segments.length - rest];
+        System.arraycopy(segments, 0, result, 0, head);
+        int size = head;
+        boolean previous = head == 0 || (segments[head - 1] & 1) != 0;
+        if (previous != allowed) {
+            result[size++] = pack(start, allowed);
+        }
+        if (hasTail && tailAllowed != allowed) {
+            result[size++] = pack(end + 1, tailAllowed);
+        }
+        // the first remaining segment already differs from the verdict at end + 1
+        System.arraycopy(segments, rest, result, size, segments.length - rest);
+        size += segments.length - rest;
+        return size == result.length ? result : Arrays.copyOf(result, size);
+    }
+
+    /**
+     * Same result as painting configs from up to to of batch over base one
+     * by one, without a copy per config: the configs are visited newest
+     * first and each one only claims what no newer config claimed, so an
+     * older config that is already covered costs a single search.
+     */
+    static long[] paintAll(long[] base, ConfigBulkLoad batch, int from, int to) {
+        // the claimed pieces [starts[i], ends[i]), sorted and disjoint;
+        // touching pieces with the same verdict are kept merged
+        int[] starts = new int[8];
+        int[] ends = new int[8];
+        boolean[] verdicts = new boolean[8];
+        int pieces = 0;
+        for (int k = to - 1; k >= from; k--) {
+            int end = batch.end(k);
+            boolean allowed = batch.accepting(k);
+            int cursor = batch.begin(k);
+            // the first piece ending after cursor
+            int i = countBelow(ends, pieces, cursor + 1);
+            while (cursor < end) {
+                if (i < pieces && starts[i] <= cursor) {
+                    cursor = ends[i++];
+                    continue;
+                }
+                int gapEnd = i < pieces ? Math.min(end, starts[i]) : end;
+                boolean joinsLeft = i > 0 && ends[i - 1] == cursor && verdicts[i - 1] == allowed;
+                boolean joinsRight = i < pieces && starts[i] == gapEnd && verdicts[i] == allowed;
+                if (joinsLeft && joinsRight) {
+                    ends[i - 1] = ends[i];
+                    pieces--;
+                    System.arraycopy(starts, i + 1, starts, i, pieces - i);
+                    System.arraycopy(ends, i + 1, ends, i, pieces - i);
+                    System.arraycopy(verdicts, i + 1, verdicts, i, pieces - i);
+                    cursor = ends[i - 1];
+                    continue;
+                } else if (joinsLeft) {
+                    ends[i - 1] = gapEnd;
+                } else if (joinsRight) {
+                    starts[i] = cursor;
+                } else {
+                    if (pieces == starts.length) {
+                        starts = Arrays.copyOf(starts, 2 * pieces);
+                        ends = Arrays.copyOf(ends, 2 * pieces);
+                        verdicts = Arrays.copyOf(verdicts, 2 * pieces);
+                    }
+                    System.arraycopy(starts, i, starts, i + 1, pieces - i);
+                    System.arraycopy(ends, i, ends, i + 1, pieces - i);
+                    System.arraycopy(verdicts, i, verdicts, i + 1, pieces - i);
+                    starts[i] = cursor;
+                    ends[i] = gapEnd;
+                    verdicts[i] = allowed;
+                    pieces++;
+                    i++;
+                }
+                cursor = gapEnd;
+            }
+        }
+
+        // the pieces, with base showing through the gaps between them
+        long[] result = new long[base.length + 2 * pieces];
+        int size = 0;
+        // anything before the first segment is allowed
+        boolean previous = true;
+        int next = 0;
+        boolean baseAllowed = true;
+        for (int i = 0; i <= pieces; i++) {
+            long gapStart = i == 0 ? Long.MIN_VALUE : ends[i - 1];
+            long gapEnd = i < pieces ? starts[i] : Long.MAX_VALUE;
+            // skip the base segments hidden under the previous piece
+            while (next < base.length && (base[next] >>> 1) <= gapStart) {
+                baseAllowed = (base[next++] & 1) != 0;
+            }
+            if (gapStart < gapEnd && i > 0 && baseAllowed != previous) {
+                result[size++] = pack((int) gapStart, baseAllowed);
+                previous = baseAllowed;
+            }
+            while (next < base.length && (base[next] >>> 1) < gapEnd) {
+                baseAllowed = (base[next] & 1) != 0;
+                if (baseAllowed != previous) {
+                    result[size++] = base[next];
+                    previous = baseAllowed;
+                }
+                next++;
+            }
+            if (i < pieces && verdicts[i] != previous) {
+                result[size++] = pack(starts[i], verdicts[i]);
+                previous = verdicts[i];
+            }
+        }
+        return size == result.length ? result : Arrays.copyOf(result, size);
+    }
+
+    static long pack(int start, boolean allowed) {
+        return ((long) start << 1) | (allowed ? 1 : 0);
+    }
+
+    // number of values[0, size) strictly less than key, values sorted
+    private static int countBelow(int[] values, int size, int key) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (values[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // number of packed segments strictly less than key
+    private static int countBelow(long[] segments, long key) {
+        int low = 0;
+        int high = segments.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (segments[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
+
+/**
+ * Checks paint and paintAll against a replay of every config, newest wins,
+ * at every address of a small space, over random configs and random bases.
+ */
+class SegmentMapTestApp {
+    // addresses checked one by one; configs end at most one past them
+    private static final int SPACE = 64;
+
+    public static void main(String[] args) {
+        java.util.Random random = new java.util.Random(RandomGenerator.DEFAULT_SEED);
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        for (int round = 0; round < rounds; round++) {
+            // a base painted by earlier configs, then a batch over it
+            int[] begins = new int[1 + random.nextInt(24)];
+            int[] ends = new int[begins.length];
+            boolean[] accepting = new boolean[begins.length];
+            for (int k = 0; k < begins.length; k++) {
+                begins[k] = random.nextInt(SPACE);
+                // now and then open ended, so the tail past the space is covered too
+                ends[k] = random.nextInt(8) == 0 ? Integer.MAX_VALUE
+                        : begins[k] + 1 + random.nextInt(SPACE - begins[k]);
+                accepting[k] = random.nextBoolean();
+            }
+            int split = random.nextInt(begins.length + 1);
+            long[] base = SegmentMap.EMPTY;
+            for (int k = 0; k < split; k++) {
+                base = SegmentMap.paint(base, begins[k], ends[k] - 1, accepting[k]);
+            }
+            check(base, begins, ends, accepting, split, "paint");
+
+            long[] painted = base;
+            Config[] batch = new Config[begins.length - split];
+            for (int k = split; k < begins.length; k++) {
+                painted = SegmentMap.paint(painted, begins[k], ends[k] - 1, accepting[k]);
+                batch[k - split] = new Config(0, false, accepting[k], begins[k], ends[k]);
+            }
+            check(painted, begins, ends, accepting, begins.length, "paint");
+            long[] bulk = SegmentMap.paintAll(base, new ConfigBulkLoad(batch, 1), 0, batch.length);
+            check(bulk, begins, ends, accepting, begins.length, "paintAll");
+            if (!Arrays.equals(bulk, painted)) {
+                throw new IllegalStateException("paintAll left other segments than paint: "
+                        + Arrays.toString(bulk) + " vs " + Arrays.toString(painted));
+            }
+        }
+        // an inclusive end of Integer.MAX_VALUE leaves no tail
+        long[] all = SegmentMap.paint(SegmentMap.paint(SegmentMap.EMPTY, 3, 9, false), 5, Integer.MAX_VALUE, false);
+        if (!SegmentMap.isAllowed(all, 2) || SegmentMap.isAllowed(all, 4) || SegmentMap.isAllowed(all, Integer.MAX_VALUE)) {
+            throw new IllegalStateException("paint to Integer.MAX_VALUE: " + Arrays.toString(all));
+        }
+        System.out.println("SegmentMap: paint and paintAll match the replay in " + rounds + " rounds");
+    }
+
+    // compares segments with the replay of configs [0, count) at every address
+    private static void check(long[] segments, int[] begins, int[] ends, boolean[] accepting, int count,
+                              String method) {
+        for (int address = 0; address <= SPACE + 1; address++) {
+            verify(segments, begins, ends, accepting, count, address, method);
+        }
+        verify(segments, begins, ends, accepting, count, Integer.MAX_VALUE - 1, method);
+        verify(segments, begins, ends, accepting, count, Integer.MAX_VALUE, method);
+        // anything before the first segment is allowed already
+        if (segments.length > 0 && (segments[0] & 1) != 0) {
+            throw new IllegalStateException(method + " left a redundant first segment: " + Arrays.toString(segments));
+        }
+        for (int i = 1; i < segments.length; i++) {
+            if (segments[i - 1] >>> 1 >= segments[i] >>> 1 || (segments[i - 1] & 1) == (segments[i] & 1)) {
+                throw new IllegalStateException(method + " left redundant segments: " + Arrays.toString(segments));
+            }
+        }
+    }
+
+    private static void verify(long[] segments, int[] begins, int[] ends, boolean[] accepting, int count,
+                               int address, String method) {
+        boolean expected = true;
+        for (int k = 0; k < count; k++) {
+            if (begins[k] <= address && address < ends[k]) {
+                expected = accepting[k];
+            }
+        }
+        if (SegmentMap.isAllowed(segments, address) != expected) {
+            throw new IllegalStateException(method + " got address " + address + " wrong: "
+                    + Arrays.toString(segments));
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * Bounded queue with a single producer and any number of consumers: the
+ * owning PacketWorker plus thieves that steal from it when their own queue
+ * runs dry. Consumers read their elements first and then claim them by
+ * CASing head forward, so a slot is never handed out twice and the producer
+ * only reuses a slot after its claim succeeded. Slots are not cleared on
+ * dequeue, since the producer may already be refilling them.
+ */
+class StealableQueue<T> implements BoundedQueue<T> {
+  private final QueueIndex head = new QueueIndex();
+  private final QueueIndex tail = new QueueIndex();
+  private final T[] items;
+  @SuppressWarnings({"unchecked"})
+  public StealableQueue(int capacity) {
+    items = (T[]) new Object[capacity];
+  }
+
+  public boolean offer(T x) {
+    if (x == null) {
+      throw new NullPointerException();
+    }
+    long t = tail.value;
+    if (t - tail.cachedOpposite == items.length) {
+      tail.cachedOpposite = head.value;
+      if (t - tail.cachedOpposite == items.length) {
+        return false;
+      }
+    }
+    items[slot(t)] = x;
+    tail.lazySet(t + 1);
+    return true;
+  }
+
+  public int offerBatch(T[] src, int offset, int count) {
+    long t = tail.value;
+    long free = items.length - (t - tail.cachedOpposite);
+    if (free < count) {
+      tail.cachedOpposite = head.value;
+      free = items.length - (t - tail.cachedOpposite);
+    }
+    int n = (int) Math.min(free, count);
+    for (int i = 0; i < n; i++) {
+      T x = src[offset + i];
+      if (x == null) {
+        throw new NullPointerException();
+      }
+      items[slot(t + i)] = x;
+    }
+    if (n > 0) {
+      tail.lazySet(t + n);
+    }
+    return n;
+  }
+
+  public T poll() {
+    while (true) {
+      long h = head.value;
+      if (h >= tail.value) {
+        return null;
+      }
+      T x = items[slot(h)];
+      if (head.compareAndSet(h, h + 1)) {
+        return x;
+      }
+    }
+  }
+
+  public int drainTo(T[] dst, int max) {
+    return take(dst, max, false);
+  }
+
+  /**
+   * Like drainTo, but takes at most half of the available elements (and at
+   * least one), leaving the rest to the owner.
+   */
+  public int steal(T[] dst, int max) {
+    return take(dst, max, true);
+  }
+
+  public boolean isFull() {
+    return tail.value - head.value == items.length;
+  }
+
+  public boolean isEmpty() {
+    return tail.value - head.value <= 0;
+  }
+
+  private int take(T[] dst, int max, boolean half) {
+    while (true) {
+      long h = head.value;
+      long available = tail.value - h;
+      if (available <= 0) {
+        return 0;
+      }
+      if (half) {
+        available = (available + 1) / 2;
+      }
+      int n = (int) Math.min(available, max);
+      for (int i = 0; i < n; i++) {
+        dst[i] = items[slot(h + i)];
+      }
+      if (head.compareAndSet(h, h + n)) {
+        return n;
+      }
+    }
+  }
+
+  private int slot(long index) {
+    return (int) (index % items.length);
+  }
+}
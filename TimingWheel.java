@@ -0,0 +1,145 @@
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Hashed timing wheel: a ring of buckets, one per tick, and a background
+ * thread that advances one bucket per tick and hands every entry due by
+ * then to a callback. Scheduling costs a bucket lock, independent of how
+ * many entries are pending; a deadline further out than one turn of the
+ * wheel waits in its bucket for the turns in between.
+ *
+ * An entry is just an int key and its deadline, and fires no earlier than
+ * its deadline and at most about a tick later, unless the callback falls
+ * behind.
+ */
+class TimingWheel implements AutoCloseable {
+    private final Bucket[] buckets;
+    private final int mask;
+    private final long tickNanos;
+    private final long startNanos;
+    private final IntConsumer expired;
+    private final Thread thread;
+    // the last tick the thread processed
+    private volatile long currentTick = 0;
+    private volatile boolean closed = false;
+
+    /**
+     * @param bucketsLog
+     *          log of the number of buckets, a turn of the wheel lasts 2^bucketsLog ticks
+     * @param expired
+     *          called on the wheel's thread with the key of every entry that is due
+     */
+    TimingWheel(long tickNanos, int bucketsLog, IntConsumer expired, String name) {
+        this.tickNanos = tickNanos;
+        this.expired = expired;
+        buckets = new Bucket[1 << bucketsLog];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new Bucket();
+        }
+        mask = buckets.length - 1;
+        startNanos = System.nanoTime();
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Calls back with key once System.nanoTime() reaches deadlineNanos.
+     */
+    void schedule(int key, long deadlineNanos) {
+        // rounded up, so an entry never fires early
+        long deadlineTick = Math.max(0, (deadlineNanos - startNanos + tickNanos - 1) / tickNanos);
+        while (true) {
+            long tick = Math.max(deadlineTick, currentTick + 1);
+            Bucket bucket = buckets[(int) (tick & mask)];
+            synchronized (bucket) {
+                // the thread moved past tick since we read currentTick, try the next one
+                if (bucket.drainedTick < tick) {
+                    bucket.add(key, tick);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the thread; pending entries never fire.
+     */
+    public void close() {
+        closed = true;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        int[] due = new int[16];
+        while (!closed) {
+            long tick = currentTick + 1;
+            long wait = startNanos + tick * tickNanos - System.nanoTime();
+            // sleep may round the nanoseconds down and wake early, so check again until the tick is due
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                } catch (InterruptedException ignore) {}
+                continue;
+            }
+            currentTick = tick;
+            Bucket bucket = buckets[(int) (tick & mask)];
+            int count;
+            synchronized (bucket) {
+                due = bucket.drain(tick, due);
+                count = bucket.drainedCount;
+            }
+            // outside the lock, so the callback may schedule again
+            for (int i = 0; i < count; i++) {
+                expired.accept(due[i]);
+            }
+        }
+    }
+
+    // entries whose tick falls on this bucket, in any turn; guarded by itself
+    private static class Bucket {
+        int[] keys = new int[4];
+        long[] ticks = new long[4];
+        int size = 0;
+        // the last tick whose entries were taken out, and how many there were
+        long drainedTick = 0;
+        int drainedCount = 0;
+
+        void add(int key, long tick) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, 2 * size);
+                ticks = Arrays.copyOf(ticks, 2 * size);
+            }
+            keys[size] = key;
+            ticks[size] = tick;
+            size++;
+        }
+
+        // moves the keys due at tick into due, grown as needed, and keeps later turns
+        int[] drain(long tick, int[] due) {
+            int count = 0;
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                if (ticks[i] <= tick) {
+                    if (count == due.length) {
+                        due = Arrays.copyOf(due, 2 * count);
+                    }
+                    due[count++] = keys[i];
+                } else {
+                    keys[kept] = keys[i];
+                    ticks[kept] = ticks[i];
+                    kept++;
+                }
+            }
+            size = kept;
+            drainedTick = tick;
+            drainedCount = count;
+            return due;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the packets of every open train, keyed by the packed
+ * (source, dest, tag), and retires the train once trainSize packets arrived,
+ * whichever workers they went to. Consecutive trains of one flow share a
+ * key, so they are told apart by count only.
+ *
+ * The map is open-addressed over an AtomicLongArray of (state, key) pairs
+ * and takes no locks. The state word holds the slot kind, a generation, the
+ * packet count and the highest sequence number seen; every update is a CAS
+ * on it, and since the generation changes whenever a slot is reused, a CAS
+ * that succeeds proves the key read before it still belongs to the slot.
+ * A key is looked up in the PROBES slots following its home slot only, so a
+ * retired slot is free for reuse right away instead of staying a tombstone
+ * that lookups have to walk past.
+ *
+ * Two workers may start the same train in different slots at once. Both
+ * re-scan after claiming their slot, at least one of them sees the other,
+ * and it folds the later slot into the earlier one.
+ */
+class TrainTracker {
+    // slots a key may occupy, starting at its home slot: four cache lines
+    private static final int PROBES = 16;
+
+    private static final long EMPTY = 0;
+    private static final long CLAIMED = 1;
+    private static final long LIVE = 2;
+    private static final long FREE = 3;
+
+    // state word: kind:2 | generation:14 | count:24 | highest sequence number + 1:24
+    private static final int KIND_SHIFT = 62;
+    private static final int GENERATION_SHIFT = 48;
+    private static final long GENERATION_MASK = (1L << 14) - 1;
+    private static final int COUNT_SHIFT = 24;
+    private static final long FIELD_MASK = (1L << 24) - 1;
+    static final int MAX_TRAIN_SIZE = (int) FIELD_MASK;
+
+    private final AtomicLongArray entries;
+    private final int mask;
+    private final int shift;
+
+    private final LongAdder completedTrains = new LongAdder();
+    private final LongAdder outOfOrderPackets = new LongAdder();
+    private final LongAdder untrackedPackets = new LongAdder();
+    private final LongAdder mergedDuplicates = new LongAdder();
+
+    /**
+     * @param numAddressesLog
+     *          at most 16, so that source, dest and tag pack into one long key
+     * @param logCapacity
+     *          log of the number of slots, should leave room for twice the open trains
+     */
+    TrainTracker(int numAddressesLog, int logCapacity) {
+        if (numAddressesLog > 16) {
+            throw new IllegalArgumentException("addresses do not fit a train key: " + numAddressesLog);
+        }
+        if (logCapacity < 4 || logCapacity > 28) {
+            throw new IllegalArgumentException("logCapacity out of range: " + logCapacity);
+        }
+        entries = new AtomicLongArray(2 << logCapacity);
+        mask = (1 << logCapacity) - 1;
+        shift = 64 - logCapacity;
+    }
+
+    static long key(int source, int dest, int tag) {
+        return ((long) source << 48) | ((long) dest << 32) | (tag & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Counts one packet of the train (source, dest, tag).
+     */
+    void record(int source, int dest, int tag, int sequenceNumber, int trainSize) {
+        if (trainSize <= 1) {
+            completedTrains.increment();
+            return;
+        }
+        if (trainSize > MAX_TRAIN_SIZE || sequenceNumber >= MAX_TRAIN_SIZE) {
+            untrackedPackets.increment();
+            return;
+        }
+        add(key(source, dest, tag), 1, sequenceNumber + 1, trainSize);
+    }
+
+    long getCompletedTrains() {
+        return completedTrains.sum();
+    }
+
+    /**
+     * Packets that arrived after a packet of the same train with a higher
+     * sequence number.
+     */
+    long getOutOfOrderPackets() {
+        return outOfOrderPackets.sum();
+    }
+
+    /**
+     * Packets not counted because their train did not fit the table.
+     */
+    long getUntrackedPackets() {
+        return untrackedPackets.sum();
+    }
+
+    long getMergedDuplicates() {
+        return mergedDuplicates.sum();
+    }
+
+    /**
+     * Trains with some but not all of their packets counted, scanning the table.
+     */
+    int getOpenTrains() {
+        int open = 0;
+        for (int i = 0; i <= mask; i++) {
+            if (kind(entries.get(2 * i)) == LIVE) {
+                open++;
+            }
+        }
+        return open;
+    }
+
+    /**
+     * Adds count packets, with highest sequence number seen - 1, to the train key.
+     */
+    private void add(long key, int count, int seen, int trainSize) {
+        if (count >= trainSize) {
+            completedTrains.increment();
+            return;
+        }
+        int home = (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+        retry:
+        while (true) {
+            int free = -1;
+            long freeState = 0;
+            for (int p = 0; p < PROBES; p++) {
+                int i = (home + p) & mask;
+                long state = entries.get(2 * i);
+                long kind = kind(state);
+                if (kind == LIVE) {
+                    if (entries.get(2 * i + 1) != key) {
+                        continue;
+                    }
+                    if (update(i, state, count, seen, trainSize)) {
+                        return;
+                    }
+                    // retired or updated under us, look again
+                    continue retry;
+                }
+                if (kind != CLAIMED && free < 0) {
+                    free = i;
+                    freeState = state;
+                }
+            }
+            if (free < 0) {
+                untrackedPackets.add(count);
+                return;
+            }
+            long generation = (generation(freeState) + 1) & GENERATION_MASK;
+            if (!entries.compareAndSet(2 * free, freeState, state(CLAIMED, generation, 0, 0))) {
+                continue;
+            }
+            // the key is published by the volatile store of the LIVE state after it
+            entries.set(2 * free + 1, key);
+            entries.set(2 * free, state(LIVE, generation, count, seen));
+            mergeDuplicates(key, home, trainSize);
+            return;
+        }
+    }
+
+    private boolean update(int i, long state, int count, int seen, int trainSize) {
+        int total = count(state) + count;
+        long next = total >= trainSize
+                ? state(FREE, generation(state), 0, 0)
+                : state(LIVE, generation(state), total, Math.max(seen(state), seen));
+        if (!entries.compareAndSet(2 * i, state, next)) {
+            return false;
+        }
+        if (total >= trainSize) {
+            completedTrains.increment();
+        }
+        if (count == 1 && seen < seen(state)) {
+            outOfOrderPackets.increment();
+        }
+        return true;
+    }
+
+    // folds every live slot of key after the first one into the first one
+    private void mergeDuplicates(long key, int home, int trainSize) {
+        boolean first = true;
+        for (int p = 0; p < PROBES; p++) {
+            int i = (home + p) & mask;
+            long state = entries.get(2 * i);
+            if (kind(state) != LIVE || entries.get(2 * i + 1) != key) {
+                continue;
+            }
+            if (first) {
+                first = false;
+                continue;
+            }
+            // a worker may bump the duplicate under us, retry until it is ours or no longer the duplicate
+            boolean folded;
+            while (!(folded = entries.compareAndSet(2 * i, state, state(FREE, generation(state), 0, 0)))) {
+                state = entries.get(2 * i);
+                if (kind(state) != LIVE || entries.get(2 * i + 1) != key) {
+                    break;
+                }
+            }
+            if (folded) {
+                mergedDuplicates.increment();
+                add(key, count(state), seen(state), trainSize);
+            }
+        }
+    }
+
+    private static long state(long kind, long generation, long count, long seen) {
+        return (kind << KIND_SHIFT) | (generation << GENERATION_SHIFT) | (count << COUNT_SHIFT) | seen;
+    }
+
+    private static long kind(long state) {
+        return state >>> KIND_SHIFT;
+    }
+
+    private static long generation(long state) {
+        return (state >>> GENERATION_SHIFT) & GENERATION_MASK;
+    }
+
+    private static int count(long state) {
+        return (int) ((state >>> COUNT_SHIFT) & FIELD_MASK);
+    }
+
+    private static int seen(long state) {
+        return (int) (state & FIELD_MASK);
+    }
+}
@@ -1,36 +1,139 @@
-class WaitFreeQueue<T> {
-  private volatile int head = 0;
-  private volatile int tail = 0;
-  private T[] items;
+/**
+ * Bounded single-producer single-consumer queue. offer/poll and their batch
+ * forms never throw; enq/deq keep the exception-based interface.
+ *
+ * head and tail each sit on their own padded cache line together with the
+ * owning side's cached copy of the opposite index, so the other side's line
+ * is only read when the cached copy says the queue looks full or empty.
+ * Indices are published with lazySet (a release store) rather than a full
+ * volatile write.
+ */
+class WaitFreeQueue<T> implements BoundedQueue<T> {
+  private final QueueIndex head = new QueueIndex();
+  private final QueueIndex tail = new QueueIndex();
+  private final T[] items;
   @SuppressWarnings({"unchecked"})
   public WaitFreeQueue(int capacity) {
     items = (T[]) new Object[capacity];
   }
   public void enq(T x) throws FullException {
-    if (tail - head == items.length) {
+    if (!offer(x)) {
       throw new FullException();
     }
-    items[tail % items.length] = x;
-    tail++;
   }
   public T deq() throws EmptyException {
-      if (tail - head == 0) {
+      T x = poll();
+      if (x == null) {
         throw new EmptyException();
       }
-      T x = items[head % items.length];
-      head++;
       return x;
   }
 
+  /**
+   * Producer side.
+   * @return
+   *          false if the queue is full
+   */
+  public boolean offer(T x) {
+    if (x == null) {
+      throw new NullPointerException();
+    }
+    long t = tail.value;
+    if (t - tail.cachedOpposite == items.length) {
+      tail.cachedOpposite = head.value;
+      if (t - tail.cachedOpposite == items.length) {
+        return false;
+      }
+    }
+    items[slot(t)] = x;
+    tail.lazySet(t + 1);
+    return true;
+  }
+
+  /**
+   * Producer side. Enqueues as many of src[offset, offset + count) as fit,
+   * publishing them with a single index update.
+   * @return
+   *          the number of elements enqueued
+   */
+  public int offerBatch(T[] src, int offset, int count) {
+    long t = tail.value;
+    long free = items.length - (t - tail.cachedOpposite);
+    if (free < count) {
+      tail.cachedOpposite = head.value;
+      free = items.length - (t - tail.cachedOpposite);
+    }
+    int n = (int) Math.min(free, count);
+    for (int i = 0; i < n; i++) {
+      T x = src[offset + i];
+      if (x == null) {
+        throw new NullPointerException();
+      }
+      items[slot(t + i)] = x;
+    }
+    if (n > 0) {
+      tail.lazySet(t + n);
+    }
+    return n;
+  }
+
+  /**
+   * Consumer side.
+   * @return
+   *          the oldest element, or null if the queue is empty
+   */
+  public T poll() {
+    long h = head.value;
+    if (h == head.cachedOpposite) {
+      head.cachedOpposite = tail.value;
+      if (h == head.cachedOpposite) {
+        return null;
+      }
+    }
+    int i = slot(h);
+    T x = items[i];
+    items[i] = null;
+    head.lazySet(h + 1);
+    return x;
+  }
+
+  /**
+   * Consumer side. Dequeues up to max elements into dst, releasing them with
+   * a single index update.
+   * @return
+   *          the number of elements dequeued
+   */
+  public int drainTo(T[] dst, int max) {
+    long h = head.value;
+    long available = head.cachedOpposite - h;
+    if (available < max) {
+      head.cachedOpposite = tail.value;
+      available = head.cachedOpposite - h;
+    }
+    int n = (int) Math.min(available, max);
+    for (int i = 0; i < n; i++) {
+      int j = slot(h + i);
+      dst[i] = items[j];
+      items[j] = null;
+    }
+    if (n > 0) {
+      head.lazySet(h + n);
+    }
+    return n;
+  }
+
   public boolean isFull() {
-    return tail - head == items.length;
+    return tail.value - head.value == items.length;
   }
 
   public boolean isEmpty() {
-    return tail - head == 0;
+    return tail.value - head.value == 0;
   }
-}
 
+  private int slot(long index) {
+    return (int) (index % items.length);
+  }
+}
 
 class FullException extends Exception {
   private static final long serialVersionUID = 1L;
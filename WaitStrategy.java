@@ -0,0 +1,153 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * What a Dispatcher or PacketWorker does while it cannot make progress, ie.
+ * its queue is full or empty. Every waiting thread owns its own instance;
+ * the thread on the other side of the queue calls wake() after it made
+ * progress possible, so a parked waiter can resume right away.
+ */
+abstract class WaitStrategy {
+    // failed attempts spent spinning before backing off
+    static final int SPINS = 100;
+    // failed attempts spent yielding before parking
+    static final int YIELDS = 100;
+    // upper bound on a park, and so on the latency a missed wake() can add
+    static final long PARK_NANOS = 100_000;
+
+    /**
+     * Called after every failed attempt.
+     * @param attempts
+     *          consecutive failed attempts before this one, 0 after any progress
+     * @return
+     *          attempts + 1
+     */
+    abstract int idle(int attempts);
+
+    void wake() {}
+
+    /**
+     * @param name
+     *          one of spin, onspinwait, yield, park or block
+     */
+    static WaitStrategy create(String name) {
+        switch (name) {
+            case "spin":
+                return new BusySpinWait();
+            case "onspinwait":
+                return new OnSpinWait();
+            case "yield":
+                return new YieldingWait();
+            case "park":
+                return new ParkingWait();
+            case "block":
+                return new BlockingWait();
+            default:
+                throw new IllegalArgumentException("unknown wait strategy: " + name);
+        }
+    }
+}
+
+// burns the core, lowest latency
+class BusySpinWait extends WaitStrategy {
+    int idle(int attempts) {
+        return attempts + 1;
+    }
+}
+
+// spins, then hints the CPU that it is in a spin loop (PAUSE on x86)
+class OnSpinWait extends WaitStrategy {
+    int idle(int attempts) {
+        if (attempts >= SPINS) {
+            Thread.onSpinWait();
+        }
+        return attempts + 1;
+    }
+}
+
+// spins, then gives the core to any other runnable thread
+class YieldingWait extends WaitStrategy {
+    int idle(int attempts) {
+        if (attempts >= SPINS) {
+            Thread.yield();
+        }
+        return attempts + 1;
+    }
+}
+
+// spins, yields, then parks until woken or PARK_NANOS pass
+class ParkingWait extends WaitStrategy {
+    private volatile Thread waiter = null;
+
+    int idle(int attempts) {
+        if (attempts < SPINS) {
+            Thread.onSpinWait();
+        } else if (attempts < SPINS + YIELDS) {
+            Thread.yield();
+        } else {
+            // a wake() between the caller's last check and this point is
+            // missed, the timeout bounds how long that can delay us
+            waiter = Thread.currentThread();
+            LockSupport.parkNanos(this, PARK_NANOS);
+            waiter = null;
+        }
+        return attempts + 1;
+    }
+
+    void wake() {
+        Thread parked = waiter;
+        if (parked != null) {
+            LockSupport.unpark(parked);
+        }
+    }
+}
+
+// spins briefly, then blocks until woken, without a timeout: the only
+// strategy for virtual threads and pool tasks, whose idle time must cost
+// nothing. A wake() is never lost, so whoever stops the waiting side must
+// wake it once after raising its done flag. Any number of threads may wake
+// an instance, but only one thread may ever wait on it: it remembers a
+// single waiter
+class BlockingWait extends WaitStrategy implements ForkJoinPool.ManagedBlocker {
+    // set by wake(), cleared by the waiter; with parked, a Dekker pair:
+    // either the waiter sees the signal or wake() sees the waiter parked
+    private volatile boolean signalled = false;
+    private volatile boolean parked = false;
+    private volatile Thread waiter = null;
+
+    int idle(int attempts) {
+        if (attempts < SPINS) {
+            Thread.onSpinWait();
+            return attempts + 1;
+        }
+        waiter = Thread.currentThread();
+        try {
+            // lets a ForkJoinPool start a spare thread while this task blocks
+            ForkJoinPool.managedBlock(this);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        signalled = false;
+        return attempts + 1;
+    }
+
+    void wake() {
+        signalled = true;
+        if (parked) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    public boolean block() {
+        parked = true;
+        if (!signalled) {
+            LockSupport.park(this);
+        }
+        parked = false;
+        return true;
+    }
+
+    public boolean isReleasable() {
+        return signalled;
+    }
+}
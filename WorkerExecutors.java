@@ -0,0 +1,37 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Executors to run PacketWorkers on instead of one platform thread each, so
+ * the number of workers can exceed the number of cores. Workers on them must
+ * wait with a BlockingWait: a spinning task would keep its carrier thread.
+ */
+class WorkerExecutors {
+    /**
+     * @param name
+     *          virtual for a virtual thread per worker, falling back to
+     *          forkjoin before Java 21, or forkjoin for a ForkJoinPool with
+     *          a thread per core, which adds spare threads while workers block
+     */
+    static ExecutorService create(String name) {
+        switch (name) {
+            case "virtual":
+                return virtualThreads();
+            case "forkjoin":
+                return new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+            default:
+                throw new IllegalArgumentException("unknown executor: " + name);
+        }
+    }
+
+    // looked up reflectively so the tree still builds and runs on Java 17
+    private static ExecutorService virtualThreads() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads need Java 21, running workers on a ForkJoinPool");
+            return create("forkjoin");
+        }
+    }
+}